@@ -0,0 +1,95 @@
+package org.klortho.flextree.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs LayoutBenchmark and RelationBenchmark with the GC profiler, and writes the
+ * full JMH results to target/jmh-result.json, and the time and bytes allocated per
+ * node of each combination of parameters to target/per-node.csv, so that runs of
+ * different versions can be compared. Any JMH command-line options are passed
+ * through; for instance, "-p shape=random -p size=100000" runs part of the matrix,
+ * and "RelationBenchmark" runs only that benchmark.
+ */
+public class BenchmarkMain {
+    public static String RESULT_FILE = "target/jmh-result.json";
+    public static String PER_NODE_FILE = "target/per-node.csv";
+
+    public static void main(String[] argv)
+        throws CommandLineOptionException, RunnerException, IOException
+    {
+        new File("target").mkdirs();
+        CommandLineOptions commandLine = new CommandLineOptions(argv);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include(LayoutBenchmark.class.getSimpleName());
+            builder.include(RelationBenchmark.class.getSimpleName());
+        }
+        Options options = builder
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(RESULT_FILE)
+            .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        // The benchmarks have different parameters, so there is a column for each
+        // parameter of any of them, left empty for the others.
+        LinkedHashSet<String> keys = new LinkedHashSet<String>();
+        for (RunResult run : results) keys.addAll(run.getParams().getParamsKeys());
+        PrintStream csv = new PrintStream(PER_NODE_FILE, "UTF-8");
+        try {
+            StringBuilder header = new StringBuilder("benchmark");
+            for (String k : keys) header.append(',').append(k);
+            header.append(",ns/node,bytes/node");
+            csv.println(header);
+            System.out.println(header);
+            for (RunResult run : results) {
+                BenchmarkResult r = run.getAggregatedResult();
+                BenchmarkParams p = run.getParams();
+                double n = Double.parseDouble(p.getParam("size"));
+                // The benchmark is named by its class and method; keep the class.
+                String name = p.getBenchmark();
+                name = name.substring(0, name.lastIndexOf('.'));
+                StringBuilder line = new StringBuilder(name.substring(name.lastIndexOf('.') + 1));
+                for (String k : keys) {
+                    String value = p.getParam(k);
+                    line.append(',').append(value == null ? "" : value);
+                }
+                line.append(String.format(",%.2f,%.2f",
+                    r.getPrimaryResult().getScore() / n, allocatedPerCall(r) / n));
+                csv.println(line);
+                System.out.println(line);
+            }
+        }
+        finally {
+            csv.close();
+        }
+    }
+
+    // The bytes allocated per call, from the GC profiler, or NaN if it didn't run.
+    // Older versions of JMH put a middle dot in front of the name.
+    static double allocatedPerCall(BenchmarkResult r) {
+        for (Map.Entry<String, Result> e : r.getSecondaryResults().entrySet()) {
+            if (e.getKey().endsWith("gc.alloc.rate.norm")) return e.getValue().getScore();
+        }
+        return Double.NaN;
+    }
+}
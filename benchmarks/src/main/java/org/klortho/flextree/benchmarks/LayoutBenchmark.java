@@ -0,0 +1,97 @@
+package org.klortho.flextree.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.klortho.flextree.LayoutEngine;
+import org.klortho.flextree.ShapeTreeGenerator;
+import org.klortho.flextree.Tree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time to lay out one tree, for each tree shape, size, sizing mode and layout
+ * path. The tree and the engine are made once per trial, in setup, so only the
+ * layout is measured; laying out a tree again gives the same result, so the same
+ * tree is used for every call.
+ *
+ * The sizing modes are those of LayoutEngine.Builder: "size" scales the whole
+ * layout to a fixed size, "nodeSizeFixed" gives every node the same size, and
+ * "nodeSizeFunction" calls a NodeSizeFunction, which allocates an array per node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class LayoutBenchmark {
+    public static final long SEED = 42;
+
+    @Param({"random", "chain", "fan", "binary"})
+    public String shape;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"size", "nodeSizeFixed", "nodeSizeFunction"})
+    public String sizing;
+
+    @Param({"wrapped", "arrays"})
+    public String path;
+
+    Tree tree;
+    LayoutEngine engine;
+
+    // A NodeSizeFunction that isn't nodeSizeFromTree, which the engine would
+    // swap for its allocation-free version.
+    static final LayoutEngine.NodeSizeFunction sizeFromTree =
+        new LayoutEngine.NodeSizeFunction() {
+            public double[] ns(Tree t) {
+                return new double[] {t.x_size, t.y_size};
+            }
+        };
+
+    @Setup
+    public void setup() {
+        tree = makeTree(shape, size);
+        LayoutEngine.Builder b = LayoutEngine.builder()
+            .setUseArrays(path.equals("arrays"));
+        if (sizing.equals("size")) b.setSize(new double[] {1000, 1000});
+        else if (sizing.equals("nodeSizeFixed")) b.setNodeSizeFixed(new double[] {5, 5});
+        else if (sizing.equals("nodeSizeFunction")) b.setNodeSizeFunction(sizeFromTree);
+        else throw new IllegalArgumentException("Unknown sizing mode: " + sizing);
+        engine = b.build();
+    }
+
+    @Benchmark
+    public double layout() {
+        engine.layout(tree);
+        return tree.x;
+    }
+
+    /**
+     * A tree of the given shape with numNodes nodes, made by ShapeTreeGenerator in
+     * linear time, so that setup doesn't dominate the large sizes. The nodes of
+     * "random" have sizes from 1 to 10; the others are all 1 by 1.
+     */
+    static Tree makeTree(String shape, int numNodes) {
+        ShapeTreeGenerator g;
+        if (shape.equals("random")) {
+            g = ShapeTreeGenerator.galtonWatson(numNodes).setNodeSizes(1, 10, 1, 10);
+        }
+        else if (shape.equals("chain")) g = ShapeTreeGenerator.chain(numNodes);
+        else if (shape.equals("fan")) g = ShapeTreeGenerator.fan(numNodes);
+        else if (shape.equals("binary")) g = ShapeTreeGenerator.kAry(numNodes, 2);
+        else throw new IllegalArgumentException("Unknown shape: " + shape);
+        return g.setSeed(SEED).makeTree();
+    }
+}
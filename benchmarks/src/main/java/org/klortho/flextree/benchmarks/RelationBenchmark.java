@@ -0,0 +1,111 @@
+package org.klortho.flextree.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.klortho.flextree.LayoutEngine;
+import org.klortho.flextree.LayoutEngine.RelationSpec;
+import org.klortho.flextree.LayoutEngine.TreeRelation;
+import org.klortho.flextree.Tree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time to lay out a random tree with separation given as a RelationSpec, which
+ * the engine computes inline, and with the same separation given as an ordinary
+ * TreeRelation, for each relation and layout path. Setup lays the tree out with
+ * all of the TreeRelations first, so that their call site in separate() is
+ * megamorphic, as it is in an application that uses several of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class RelationBenchmark {
+    public static final int WARMUP = 10;
+
+    @Param({"constant", "siblings", "byDepth"})
+    public String relation;
+
+    // "spec" is the RelationSpec, and "fallback" the equivalent TreeRelation.
+    @Param({"spec", "fallback"})
+    public String form;
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"wrapped", "arrays"})
+    public String path;
+
+    Tree tree;
+    LayoutEngine engine;
+
+    static final double[] TABLE = {1, 1.5, 2, 2.5};
+
+    static final String[] NAMES = {"constant", "siblings", "byDepth"};
+
+    static final TreeRelation[] SPECS = {
+        RelationSpec.constant(1),
+        RelationSpec.siblings(1, 2),
+        RelationSpec.byDepth(TABLE),
+    };
+
+    static final TreeRelation[] FALLBACKS = {
+        new TreeRelation() {
+            public double s(Tree a, Tree b) {
+                return 1;
+            }
+        },
+        new TreeRelation() {
+            public double s(Tree a, Tree b) {
+                return a.parent == b.parent ? 1 : 2;
+            }
+        },
+        new TreeRelation() {
+            public double s(Tree a, Tree b) {
+                int d = Math.max(a.depth, b.depth);
+                return TABLE[Math.min(d, TABLE.length - 1)];
+            }
+        },
+    };
+
+    @Setup
+    public void setup() {
+        tree = LayoutBenchmark.makeTree("random", size);
+        boolean useArrays = path.equals("arrays");
+        for (TreeRelation r : FALLBACKS) {
+            LayoutEngine e = engine(r, useArrays);
+            for (int i = 0; i < WARMUP; i++) e.layout(tree);
+        }
+        int i = Arrays.asList(NAMES).indexOf(relation);
+        if (i < 0) throw new IllegalArgumentException("Unknown relation: " + relation);
+        if (form.equals("spec")) engine = engine(SPECS[i], useArrays);
+        else if (form.equals("fallback")) engine = engine(FALLBACKS[i], useArrays);
+        else throw new IllegalArgumentException("Unknown form: " + form);
+    }
+
+    @Benchmark
+    public double layout() {
+        engine.layout(tree);
+        return tree.x;
+    }
+
+    static LayoutEngine engine(TreeRelation separation, boolean useArrays) {
+        return LayoutEngine.builder()
+                .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .setSeparation(separation)
+                .setUseArrays(useArrays)
+                .build();
+    }
+}
@@ -0,0 +1,901 @@
+package org.klortho.flextree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A struct-of-arrays implementation of the same algorithm as LayoutEngine's
+ * WrappedTree path. The nodes are numbered once, in preorder, and everything the
+ * algorithm keeps per node lives in parallel primitive arrays indexed by that number,
+ * instead of in one WrappedTree object per node. Threads and extreme nodes are
+ * node numbers, with -1 standing for null.
+ *
+ * The children of node v are kids[kidStart[v]] ... kids[kidStart[v + 1] - 1], and 
+ * its subtree is made up of nodes v ... end[v] - 1.
+ *
+ * The arrays only ever grow, so an instance can be reused for any number of layouts;
+ * LayoutWorkspace is the public handle for doing that. The results are the same, bit
+ * for bit, as those of the WrappedTree path.
+ */
+final class ArrayLayout {
+    // The engine whose settings are in effect for the current layout.
+    LayoutEngine engine;
+    double rootXSize;
+
+    // Number of nodes in the current tree, and the depth of its deepest node.
+    int n;
+    int maxDepth;
+
+    Tree[] trees = new Tree[0];
+    int[] ids = new int[0];         // The CompactTree index of each node.
+    int[] kidStart = new int[1];
+    int[] kids = new int[0];
+    int[] end = new int[0];
+    int[] parent = new int[0];
+    int[] depth = new int[0];
+    double[] x_size = new double[0];
+    double[] y_size = new double[0];
+    double[] x = new double[0];
+    double[] y = new double[0];
+
+    double[] prelim = new double[0];
+    double[] mod = new double[0];
+    double[] shift = new double[0];
+    double[] change = new double[0];
+    int[] tl = new int[0];          // Left and right thread.
+    int[] tr = new int[0];
+    int[] el = new int[0];          // Extreme left and right nodes.
+    int[] er = new int[0];
+    double[] msel = new double[0];  // Sum of modifiers at the extreme nodes.
+    double[] mser = new double[0];
+
+    // Scratch space: a stack for the traversals, the sums of modifiers per level,
+    // and the IYL list of the node whose children are currently being separated.
+    Tree[] treeStack = new Tree[0];
+    int[] intStack = new int[0];
+    double[] modsums = new double[0];
+    int left, right, bottom;   // The extremes, when scaling.
+    // The bounds of each depth, and of each subtree if the engine wants them, made
+    // by store().
+    double[] depthMinX = new double[0], depthMaxX = new double[0],
+             depthMinY = new double[0], depthMaxY = new double[0];
+    double[] subMinX = new double[0], subMaxX = new double[0],
+             subMinY = new double[0], subMaxY = new double[0];
+    boolean subtreeBounds;
+    boolean writeTree;         // Whether the results are set on the Tree nodes.
+    IYL iyl = new IYL();
+    // The stats of the current layout, if the engine has a listener.
+    LayoutStats stats;
+
+    /**
+     * Does the layout, with the same effect on the Tree nodes as LayoutEngine.layout().
+     */
+    void layout(LayoutEngine engine, Tree t) {
+        layout(engine, t, true);
+    }
+
+    /**
+     * Does the layout, leaving the Tree nodes alone, and returns the results.
+     */
+    LayoutResult layoutResult(LayoutEngine engine, Tree t) {
+        return layout(engine, t, false);
+    }
+
+    LayoutResult layout(LayoutEngine engine, Tree t, boolean writeTree) {
+        this.engine = engine;
+        this.writeTree = writeTree;
+        try {
+            long start = startStats();
+            load(t);
+            start = walk(start);
+            LayoutResult result = writeTree ? null :
+                new LayoutResult(Arrays.copyOf(trees, n), 
+                    Arrays.copyOf(parent, n), Arrays.copyOf(depth, n), 
+                    Arrays.copyOf(x, n), Arrays.copyOf(y, n),
+                    Arrays.copyOf(x_size, n), Arrays.copyOf(y_size, n), bounds());
+            finishStats(start, "arrays");
+            return result;
+        }
+        finally {
+            // Don't hold on to the caller's tree, or its settings.
+            Arrays.fill(trees, 0, n, null);
+            this.engine = null;
+            stats = iyl.stats = null;
+        }
+    }
+
+    /**
+     * Lays out a tree from a binary file, and writes x and y to out. There are no
+     * Tree nodes, so the separation and spacing must be RelationSpecs.
+     */
+    void layout(LayoutEngine engine, BinaryTree t, MappedRecords out) {
+        this.engine = engine;
+        this.writeTree = false;
+        try {
+            long start = startStats();
+            load(t);
+            start = walk(start);
+            for (int v = 0; v < n; v++) {
+                out.putDouble(v, BinaryTree.X, x[v]);
+                out.putDouble(v, BinaryTree.Y, y[v]);
+            }
+            finishStats(start, "binary");
+        }
+        finally {
+            this.engine = null;
+            stats = iyl.stats = null;
+        }
+    }
+
+    /**
+     * Lays out a CompactTree, setting x, y and depth on it, and the sizes if 
+     * setNodeSizes is set. There are no Tree nodes, so the separation and spacing 
+     * must be RelationSpecs.
+     */
+    void layout(LayoutEngine engine, CompactTree t) {
+        this.engine = engine;
+        this.writeTree = false;
+        try {
+            long start = startStats();
+            load(t);
+            start = walk(start);
+            boolean setNodeSizes = engine.setNodeSizes;
+            for (int v = 0; v < n; v++) {
+                int a = ids[v];
+                t.x[a] = x[v];
+                t.y[a] = y[v];
+                t.depth[a] = depth[v];
+                if (setNodeSizes) {
+                    t.x_size[a] = x_size[v];
+                    t.y_size[a] = y_size[v];
+                }
+            }
+            finishStats(start, "compact");
+        }
+        finally {
+            this.engine = null;
+            stats = iyl.stats = null;
+        }
+    }
+
+    // Start the stats of a layout, if the engine has a listener or the layout
+    // events are enabled, and return the time it started, for the laps.
+    long startStats() {
+        stats = iyl.stats = LayoutStats.start(engine.listener);
+        return stats == null ? 0 : System.nanoTime();
+    }
+
+    // Lay out the tree that was just loaded, and return the time the walks ended.
+    long walk(long start) {
+        LayoutStats stats = this.stats;
+        if (stats != null) {
+            stats.numNodes = n;
+            start = stats.loaded(start);
+        }
+        rootXSize = x_size[0];
+        zerothWalk(0);
+        if (stats != null) {
+            stats.maxDepth = maxDepth;
+            start = stats.lap(LayoutStats.Phase.ZEROTH_WALK, start);
+        }
+        firstWalk();
+        if (stats != null) start = stats.lap(LayoutStats.Phase.FIRST_WALK, start);
+        secondWalk();
+        if (stats != null) start = stats.lap(LayoutStats.Phase.SECOND_WALK, start);
+        store();
+        return start;
+    }
+
+    // Time the storing of the results, and finish the stats of a layout of the
+    // given kind of tree.
+    void finishStats(long start, String path) {
+        if (stats == null) return;
+        stats.lap(LayoutStats.Phase.STORE, start);
+        ForkJoinPool pool = engine.pool;
+        stats.done(engine, path, 
+            pool != null && n >= engine.parallelThreshold ? pool.getParallelism() : 1);
+    }
+
+    // The arena can be in any order, so the nodes are numbered in preorder by
+    // following the child and sibling links, and back up the parent links, without
+    // a stack. Then each node's children are counted, and filled in left to right.
+    void load(CompactTree t) {
+        n = t.size;
+        ids = grow(ids, n);
+        intStack = grow(intStack, n);
+        kidStart = grow(kidStart, n + 1);
+        ensureCapacity(n);
+        int[] pre = intStack;    // The preorder number of each arena node.
+        int a = 0;
+        for (int v = 0; v < n; v++) {
+            ids[v] = a;
+            pre[a] = v;
+            parent[v] = v == 0 ? -1 : pre[t.parent[a]];
+            if (t.firstChild[a] >= 0) {
+                a = t.firstChild[a];
+            }
+            else {
+                while (a >= 0 && t.nextSibling[a] < 0) a = t.parent[a];
+                if (a >= 0) a = t.nextSibling[a];
+            }
+        }
+
+        Arrays.fill(kidStart, 0, n + 1, 0);
+        for (int v = 1; v < n; v++) kidStart[parent[v] + 1]++;
+        for (int v = 0; v < n; v++) kidStart[v + 1] += kidStart[v];
+        kids = grow(kids, kidStart[n]);
+        int[] fill = intStack;   // The next free slot of each node's children.
+        System.arraycopy(kidStart, 0, fill, 0, n);
+        for (int v = 1; v < n; v++) kids[fill[parent[v]]++] = v;
+        for (int v = n - 1; v >= 0; v--) {
+            end[v] = kidStart[v] == kidStart[v + 1] ? v + 1 : end[lastKid(v)];
+        }
+
+        LayoutEngine e = engine;
+        if (e.size != null || e.nodeSizeFixed != null) {
+            setSizes();
+        }
+        else {
+            for (int v = 0; v < n; v++) {
+                x_size[v] = t.x_size[ids[v]];
+                y_size[v] = t.y_size[ids[v]];
+            }
+        }
+    }
+
+    // The nodes of the file are already in preorder, so the structure can be 
+    // copied. The sizes come from the file, unless they are fixed.
+    void load(BinaryTree t) {
+        if (t.size() >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The tree has too many nodes");
+        }
+        n = (int) t.size();
+        kidStart = grow(kidStart, n + 1);
+        int free = 0;
+        for (int v = 0; v < n; v++) {
+            kidStart[v] = free;
+            free += t.numChildren(v);
+        }
+        kidStart[n] = free;
+        kids = grow(kids, free);
+        ensureCapacity(n);
+        for (int v = 0; v < n; v++) {
+            long kid = v + 1;
+            for (int k = kidStart[v]; k < kidStart[v + 1]; k++) {
+                if (kid >= n) throw new IllegalArgumentException("The tree file is corrupt");
+                kids[k] = (int) kid;
+                kid = t.end(kid);
+            }
+            end[v] = (int) kid;
+        }
+        LayoutEngine e = engine;
+        if (e.size != null || e.nodeSizeFixed != null) {
+            setSizes();
+        }
+        else {
+            for (int v = 0; v < n; v++) {
+                x_size[v] = t.x_size(v);
+                y_size[v] = t.y_size(v);
+            }
+        }
+    }
+
+    // Number the nodes in preorder, and record their children and sizes. Like
+    // the WrappedTree path, this calls the node size function in preorder. Only the
+    // structure arrays have to grow while the tree is read; the rest are sized 
+    // once the number of nodes is known.
+    void load(Tree root) {
+        n = 0;
+        int free = 0;     // Next unreserved slot in kids.
+        int top = 0;
+        treeStack = grow(treeStack, 1);
+        intStack = grow(intStack, 1);
+        treeStack[top] = root;
+        intStack[top++] = -1;
+        while (top > 0) {
+            Tree t = treeStack[--top];
+            int slot = intStack[top];
+            treeStack[top] = null;
+            int v = n++;
+            trees = grow(trees, n);
+            kidStart = grow(kidStart, n + 1);
+            trees[v] = t;
+            if (slot >= 0) kids[slot] = v;
+
+            // Reserve one slot for each of the children, and push them in reverse
+            // order, so that they are numbered left to right.
+            int numKids = t.children.size();
+            kidStart[v] = free;
+            free += numKids;
+            kids = grow(kids, free);
+            treeStack = grow(treeStack, top + numKids);
+            intStack = grow(intStack, top + numKids);
+            for (int i = numKids - 1; i >= 0; i--) {
+                treeStack[top] = t.children.get(i);
+                intStack[top++] = kidStart[v] + i;
+            }
+        }
+        // The slots were reserved in preorder, so kidStart is increasing, and the
+        // slots of the last node end where the unreserved ones begin.
+        kidStart[n] = free;
+
+        ensureCapacity(n);
+        for (int v = n - 1; v >= 0; v--) {
+            end[v] = kidStart[v] == kidStart[v + 1] ? v + 1 : end[lastKid(v)];
+        }
+        setSizes();
+    }
+
+    // Fixed sizes are filled in without a call per node. The size functions are
+    // called in preorder.
+    void setSizes() {
+        LayoutEngine e = engine;
+        if (e.size != null || e.nodeSizeFixed != null) {
+            double xs = e.size != null ? 1 : e.nodeSizeFixed[0];
+            double ys = e.size != null ? 1 : e.nodeSizeFixed[1];
+            Arrays.fill(x_size, 0, n, xs);
+            Arrays.fill(y_size, 0, n, ys);
+            if (e.setNodeSizes && writeTree) {
+                for (int v = 0; v < n; v++) {
+                    trees[v].x_size = xs;
+                    trees[v].y_size = ys;
+                }
+            }
+            return;
+        }
+        LayoutEngine.PrimitiveNodeSizeFunction pnsf = e.primitiveNodeSizeFunction;
+        boolean setNodeSizes = e.setNodeSizes && writeTree;
+        long start = stats == null ? 0 : stats.beginSizes();
+        for (int v = 0; v < n; v++) {
+            Tree t = trees[v];
+            if (pnsf != null) {
+                x_size[v] = pnsf.xSize(t);
+                y_size[v] = pnsf.ySize(t);
+            }
+            else {
+                double[] nodeSize = e.nodeSizeFunction.ns(t);
+                x_size[v] = nodeSize[0];
+                y_size[v] = nodeSize[1];
+            }
+            if (setNodeSizes) {
+                t.x_size = x_size[v];
+                t.y_size = y_size[v];
+            }
+        }
+        if (stats != null) stats.endSizes(start, n);
+    }
+
+    int numKids(int v) {
+        return kidStart[v + 1] - kidStart[v];
+    }
+
+    int kid(int v, int i) {
+        return kids[kidStart[v] + i];
+    }
+
+    int lastKid(int v) {
+        return kids[kidStart[v + 1] - 1];
+    }
+
+    // Set y, depth and parent. The Tree nodes get them right away, as they do in
+    // the WrappedTree path, since separation and spacing functions may look at them.
+    void zerothWalk(double initial) {
+        y[0] = initial;
+        depth[0] = 0;
+        parent[0] = -1;
+        boolean writeTree = this.writeTree;
+        if (writeTree) {
+            trees[0].y = initial;
+            trees[0].depth = 0;
+        }
+        maxDepth = 0;
+        for (int v = 0; v < n; v++) {
+            double kid_y = y[v] + y_size[v];
+            int kid_depth = depth[v] + 1;
+            if (kidStart[v] < kidStart[v + 1]) maxDepth = Math.max(maxDepth, kid_depth);
+            for (int k = kidStart[v]; k < kidStart[v + 1]; k++) {
+                int kid = kids[k];
+                y[kid] = kid_y;
+                depth[kid] = kid_depth;
+                parent[kid] = v;
+                if (writeTree) {
+                    Tree t = trees[kid];
+                    t.y = kid_y;
+                    t.parent = trees[v];
+                    t.depth = kid_depth;
+                }
+            }
+        }
+    }
+
+    void firstWalk() {
+        Arrays.fill(prelim, 0, n, 0);
+        Arrays.fill(mod, 0, n, 0);
+        Arrays.fill(shift, 0, n, 0);
+        Arrays.fill(change, 0, n, 0);
+        Arrays.fill(tl, 0, n, -1);
+        Arrays.fill(tr, 0, n, -1);
+        ForkJoinPool pool = engine.pool;
+        if (pool != null && n >= engine.parallelThreshold) {
+            parallelFirstWalk(pool, engine.parallelThreshold);
+        }
+        else {
+            firstWalk(0, n, iyl);
+        }
+    }
+
+    // Walk the nodes to - 1 down to from, which must be made up of whole subtrees.
+    void firstWalk(int from, int to, IYL iyl) {
+        for (int v = to - 1; v >= from; v--) {
+            firstWalk(v, iyl);
+        }
+    }
+
+    // Subtrees are independent of each other until their parent separates them,
+    // so the subtrees smaller than the threshold, whose parents are not, are walked
+    // as ForkJoin tasks. Runs of such siblings are contiguous in preorder, so they 
+    // are grouped into tasks of about threshold nodes each. The nodes that are left,
+    // with subtrees of at least threshold nodes, are walked afterwards, in reverse
+    // preorder, as in the sequential walk. The results are identical to those of 
+    // the sequential walk.
+    void parallelFirstWalk(ForkJoinPool pool, final int threshold) {
+        final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int v = 0; v < n; v++) {
+            if (end[v] - v < threshold) {
+                v = end[v] - 1;
+                continue;
+            }
+            int from = -1;      // Start of the current run of small children.
+            for (int k = kidStart[v]; k < kidStart[v + 1]; k++) {
+                int kid = kids[k];
+                if (end[kid] - kid >= threshold) {
+                    if (from >= 0) tasks.add(new SubtreeWalk(from, kid));
+                    from = -1;
+                }
+                else {
+                    if (from < 0) from = kid;
+                    if (end[kid] - from >= threshold) {
+                        tasks.add(new SubtreeWalk(from, end[kid]));
+                        from = -1;
+                    }
+                }
+            }
+            if (from >= 0) tasks.add(new SubtreeWalk(from, end[v]));
+        }
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        if (stats != null) {
+            for (RecursiveAction task : tasks) stats.add(((SubtreeWalk) task).iyl.stats);
+        }
+        for (int v = n - 1; v >= 0; v--) {
+            if (end[v] - v >= threshold) firstWalk(v, iyl);
+        }
+    }
+
+    // Each task counts into stats of its own, which are added up afterwards.
+    class SubtreeWalk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int from, to;
+        final IYL iyl = new IYL();
+        SubtreeWalk(int from, int to) {
+            this.from = from;
+            this.to = to;
+            if (stats != null) iyl.stats = new LayoutStats();
+        }
+        protected void compute() {
+            firstWalk(from, to, iyl);
+        }
+    }
+
+    // Same as LayoutEngine.firstWalk(WrappedTree): the children must already have
+    // been walked.
+    void firstWalk(int v, IYL iyl) {
+        int numKids = numKids(v);
+        if (numKids == 0) {
+            setExtremes(v);
+            return;
+        }
+        iyl.clear(numKids);
+        iyl.update(bottom(el[kid(v, 0)]), 0);
+        for (int i = 1; i < numKids; i++) {
+            double minY = bottom(er[kid(v, i)]);
+            separate(v, i, iyl);
+            iyl.update(minY, i);
+            if (iyl.stats != null) iyl.stats.iylLength(iyl.top + 1);
+        }
+        positionRoot(v);
+        setExtremes(v);
+    }
+
+    void setExtremes(int v) {
+        if (numKids(v) == 0) {
+            el[v] = v;
+            er[v] = v;
+            msel[v] = mser[v] = 0;
+        }
+        else {
+            int first = kid(v, 0), last = lastKid(v);
+            el[v] = el[first];
+            msel[v] = msel[first];
+            er[v] = er[last];
+            mser[v] = mser[last];
+        }
+    }
+
+    void separate(int v, int i, IYL iyl) {
+        LayoutEngine.TreeRelation separation = engine.separation,
+                                  spacing = engine.spacing;
+        LayoutEngine.RelationSpec separationSpec = engine.separationSpec,
+                                  spacingSpec = engine.spacingSpec;
+
+        // Right contour node of left siblings and its sum of modifiers.
+        int sr = kid(v, i - 1);
+        double mssr = mod[sr];
+
+        // Left contour node of current subtree and its sum of modifiers.
+        int cl = kid(v, i);
+        double mscl = mod[cl];
+
+        // The position of the current head of the IYL list.
+        int ih = iyl.top;
+
+        // Counts for the stats, kept in local variables until the end.
+        int steps = 0, moves = 0, distributions = 0;
+
+        while (sr >= 0 && cl >= 0) {
+            steps++;
+            if (bottom(sr) > iyl.lowY[ih]) ih--;
+
+            double dist = (mssr + prelim[sr]) - (mscl + prelim[cl]);
+            if (separationSpec != null) {
+                dist += separationSpec.s(parent[sr] == parent[cl], depth[sr], depth[cl]) 
+                        * rootXSize;
+            }
+            else if (separation != null) {
+                dist += separation.s(trees[sr], trees[cl]) * rootXSize;
+            }
+            else if (spacingSpec != null) {
+                dist += x_size[sr]/2 + x_size[cl]/2 + 
+                        spacingSpec.s(parent[sr] == parent[cl], depth[sr], depth[cl]);
+            }
+            else if (spacing != null) {
+                dist += x_size[sr]/2 + x_size[cl]/2 + spacing.s(trees[sr], trees[cl]);
+            }
+            if (dist > 0) {
+                mscl += dist;
+                moveSubtree(v, i, iyl.index[ih], dist);
+                moves++;
+                if (iyl.index[ih] != i - 1) distributions++;
+            }
+            double sy = bottom(sr),
+                   cy = bottom(cl);
+
+            // Advance highest node(s) and sum(s) of modifiers
+            if (sy <= cy) {
+                sr = nextRightContour(sr);
+                if (sr >= 0) mssr += mod[sr];
+            }
+            if (sy >= cy) {
+                cl = nextLeftContour(cl);
+                if (cl >= 0) mscl += mod[cl];
+            }
+        }
+
+        // Set threads and update extreme nodes.
+        if (sr < 0 && cl >= 0) setLeftThread(v, i, cl, mscl);
+        else if (sr >= 0 && cl < 0) setRightThread(v, i, sr, mssr);
+
+        if (iyl.stats != null) {
+            iyl.stats.separated(steps, moves, distributions, (sr < 0) != (cl < 0));
+        }
+    }
+
+    void moveSubtree(int v, int i, int si, double dist) {
+        int kid = kid(v, i);
+        mod[kid] += dist;
+        msel[kid] += dist;
+        mser[kid] += dist;
+        distributeExtra(v, i, si, dist);
+    }
+
+    int nextLeftContour(int v) {
+        return numKids(v) == 0 ? tl[v] : kid(v, 0);
+    }
+
+    int nextRightContour(int v) {
+        return numKids(v) == 0 ? tr[v] : lastKid(v);
+    }
+
+    double bottom(int v) {
+        return y[v] + y_size[v];
+    }
+
+    void setLeftThread(int v, int i, int cl, double modsumcl) {
+        int first = kid(v, 0), current = kid(v, i);
+        int li = el[first];
+        tl[li] = cl;
+
+        // Change mod so that the sum of modifier after following thread is correct.
+        double diff = (modsumcl - mod[cl]) - msel[first];
+        mod[li] += diff;
+
+        // Change preliminary x coordinate so that the node does not move.
+        prelim[li] -= diff;
+
+        // Update extreme node and its sum of modifiers.
+        el[first] = el[current];
+        msel[first] = msel[current];
+    }
+
+    // Symmetrical to setLeftThread.
+    void setRightThread(int v, int i, int sr, double modsumsr) {
+        int current = kid(v, i), previous = kid(v, i - 1);
+        int ri = er[current];
+        tr[ri] = sr;
+        double diff = (modsumsr - mod[sr]) - mser[current];
+        mod[ri] += diff;
+        prelim[ri] -= diff;
+        er[current] = er[previous];
+        mser[current] = mser[previous];
+    }
+
+    void positionRoot(int v) {
+        int first = kid(v, 0), last = lastKid(v);
+        prelim[v] = ( prelim[first] +
+                      mod[first] -
+                      x_size[first]/2 +
+                      mod[last] +
+                      prelim[last] +
+                      x_size[last]/2) / 2;
+    }
+
+    // Same as LayoutEngine.secondWalk: in preorder, the most recently visited node
+    // one level up is always the parent. When scaling, this also finds the extremes,
+    // breaking ties the same way the WrappedTree path does: a node that ties with the
+    // current extreme replaces it, unless it is in the current extreme's subtree.
+    void secondWalk() {
+        modsums = grow(modsums, maxDepth + 1);
+        boolean scaling = engine.size != null;
+        int left = 0, right = 0, bottom = 0;
+        for (int v = 0; v < n; v++) {
+            int d = depth[v];
+            double modsum = (d == 0 ? 0 : modsums[d - 1]) + mod[v];
+            modsums[d] = modsum;
+            double xv = x[v] = prelim[v] + modsum;
+            addChildSpacing(v);
+            if (scaling) {
+                if (xv < x[left] || xv == x[left] && v >= end[left]) left = v;
+                if (xv > x[right] || xv == x[right] && v >= end[right]) right = v;
+                if (d >= depth[bottom]) bottom = v;
+            }
+        }
+        this.left = left;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    void distributeExtra(int v, int i, int si, double dist) {
+        // Are there intermediate children?
+        if (si != i - 1) {
+            double nr = i - si;
+            shift[kid(v, si + 1)] += dist / nr;
+            shift[kid(v, i)] -= dist / nr;
+            change[kid(v, i)] -= dist - dist / nr;
+        }
+    }
+
+    // Process change and shift to add intermediate spacing to mod.
+    void addChildSpacing(int v) {
+        double d = 0, modsumdelta = 0;
+        for (int k = kidStart[v]; k < kidStart[v + 1]; k++) {
+            int kid = kids[k];
+            d += shift[kid];
+            modsumdelta += d + change[kid];
+            mod[kid] += modsumdelta;
+        }
+    }
+
+    // A list of the indexes of left siblings and their lowest vertical coordinate.
+    // It's only ever changed at its head, so it's kept as a stack, with the head at
+    // top. Each thread that walks subtrees needs one of its own, which also holds
+    // the stats that the thread counts into, if there are any.
+    static final class IYL {
+        double[] lowY = new double[0];
+        int[] index = new int[0];
+        int top;
+        LayoutStats stats;
+
+        void clear(int capacity) {
+            lowY = grow(lowY, capacity);
+            index = grow(index, capacity);
+            top = -1;
+        }
+
+        void update(double minY, int i) {
+            // Remove siblings that are hidden by the new subtree, counting them if
+            // there are stats.
+            while (top >= 0 && minY >= lowY[top]) {
+                top--;
+                if (stats != null) stats.iylPops++;
+            }
+            // Prepend the new subtree.
+            top++;
+            lowY[top] = minY;
+            index[top] = i;
+        }
+    }
+
+    double separation(int a, int b) {
+        LayoutEngine e = engine;
+        if (e.separationSpec != null) {
+            return e.separationSpec.s(parent[a] == parent[b], depth[a], depth[b]);
+        }
+        return e.separation.s(trees[a], trees[b]);
+    }
+
+    // Copy the results into the Tree nodes (unless writeTree is false), in the same
+    // pass either scaling x and y to the fixed size, or normalizing x so that the 
+    // root node is at x == 0, and working out the bounds. The nodes are done in
+    // reverse preorder, so that each one's children are done before it.
+    void store() {
+        LayoutEngine e = engine;
+        startBounds();
+        boolean writeTree = this.writeTree,
+                setNodeSizes = e.setNodeSizes;
+        if (e.size != null) {
+            double sep = e.separation == null ? 0.5 : separation(left, right)/2;
+            double tx = sep - x[left];
+            double kx = e.size[0] / (x[right] + sep + tx);
+            double ky = e.size[1] / (depth[bottom] > 0 ? depth[bottom] : 1);
+            for (int v = n - 1; v >= 0; v--) {
+                x[v] = (x[v] + tx) * kx;
+                y[v] = depth[v] * ky;
+                x_size[v] *= kx;
+                y_size[v] *= ky;
+                if (writeTree) {
+                    Tree t = trees[v];
+                    t.x = x[v];
+                    t.y = y[v];
+                    if (setNodeSizes) {
+                        t.x_size = x_size[v];
+                        t.y_size = y_size[v];
+                    }
+                }
+                bound(v);
+            }
+        }
+        else {
+            double move = -x[0];
+            for (int v = n - 1; v >= 0; v--) {
+                x[v] = x[v] + move;
+                if (writeTree) {
+                    Tree t = trees[v];
+                    t.x = x[v];
+                    t.y = y[v];
+                    if (setNodeSizes) {
+                        t.x_size = x_size[v];
+                        t.y_size = y_size[v];
+                    }
+                }
+                bound(v);
+            }
+        }
+    }
+
+    void startBounds() {
+        int depths = maxDepth + 1;
+        depthMinX = grow(depthMinX, depths);
+        depthMaxX = grow(depthMaxX, depths);
+        depthMinY = grow(depthMinY, depths);
+        depthMaxY = grow(depthMaxY, depths);
+        Arrays.fill(depthMinX, 0, depths, Double.POSITIVE_INFINITY);
+        Arrays.fill(depthMaxX, 0, depths, Double.NEGATIVE_INFINITY);
+        Arrays.fill(depthMinY, 0, depths, Double.POSITIVE_INFINITY);
+        Arrays.fill(depthMaxY, 0, depths, Double.NEGATIVE_INFINITY);
+        subtreeBounds = engine.subtreeBounds;
+        if (subtreeBounds) {
+            subMinX = grow(subMinX, n);
+            subMaxX = grow(subMaxX, n);
+            subMinY = grow(subMinY, n);
+            subMaxY = grow(subMaxY, n);
+        }
+    }
+
+    // Add node v, which is in its final place, to the bounds of its depth, and 
+    // work out the bounds of its subtree from those of its children.
+    void bound(int v) {
+        double minX = x[v] - x_size[v] / 2, maxX = x[v] + x_size[v] / 2,
+               minY = y[v], maxY = y[v] + y_size[v];
+        int d = depth[v];
+        if (minX < depthMinX[d]) depthMinX[d] = minX;
+        if (maxX > depthMaxX[d]) depthMaxX[d] = maxX;
+        if (minY < depthMinY[d]) depthMinY[d] = minY;
+        if (maxY > depthMaxY[d]) depthMaxY[d] = maxY;
+        if (subtreeBounds) {
+            for (int k = kidStart[v]; k < kidStart[v + 1]; k++) {
+                int kid = kids[k];
+                minX = Math.min(minX, subMinX[kid]);
+                maxX = Math.max(maxX, subMaxX[kid]);
+                minY = Math.min(minY, subMinY[kid]);
+                maxY = Math.max(maxY, subMaxY[kid]);
+            }
+            subMinX[v] = minX;
+            subMaxX[v] = maxX;
+            subMinY[v] = minY;
+            subMaxY[v] = maxY;
+        }
+    }
+
+    // A copy of the bounds of the last layout.
+    LayoutBounds bounds() {
+        int depths = maxDepth + 1;
+        return new LayoutBounds(
+            Arrays.copyOf(depthMinX, depths), Arrays.copyOf(depthMaxX, depths),
+            Arrays.copyOf(depthMinY, depths), Arrays.copyOf(depthMaxY, depths),
+            subtreeBounds ? Arrays.copyOf(subMinX, n) : null,
+            subtreeBounds ? Arrays.copyOf(subMaxX, n) : null,
+            subtreeBounds ? Arrays.copyOf(subMinY, n) : null,
+            subtreeBounds ? Arrays.copyOf(subMaxY, n) : null);
+    }
+
+    // Make room for the per-node state of a tree with this many nodes.
+    void ensureCapacity(int capacity) {
+        if (capacity <= parent.length) return;
+        int c = capacity;
+        end = Arrays.copyOf(end, c);
+        parent = Arrays.copyOf(parent, c);
+        depth = Arrays.copyOf(depth, c);
+        x_size = Arrays.copyOf(x_size, c);
+        y_size = Arrays.copyOf(y_size, c);
+        x = Arrays.copyOf(x, c);
+        y = Arrays.copyOf(y, c);
+        prelim = Arrays.copyOf(prelim, c);
+        mod = Arrays.copyOf(mod, c);
+        shift = Arrays.copyOf(shift, c);
+        change = Arrays.copyOf(change, c);
+        tl = Arrays.copyOf(tl, c);
+        tr = Arrays.copyOf(tr, c);
+        el = Arrays.copyOf(el, c);
+        er = Arrays.copyOf(er, c);
+        msel = Arrays.copyOf(msel, c);
+        mser = Arrays.copyOf(mser, c);
+    }
+
+    int capacity() {
+        return parent.length;
+    }
+
+    long retainedBytes() {
+        long refs = trees.length + treeStack.length;
+        long ints = kidStart.length + kids.length + parent.length + depth.length +
+                    ids.length + tl.length + tr.length + el.length + er.length +
+                    end.length + intStack.length + iyl.index.length;
+        long doubles = x_size.length + y_size.length + x.length + y.length +
+                       prelim.length + mod.length + shift.length + change.length +
+                       msel.length + mser.length + modsums.length + iyl.lowY.length +
+                       depthMinX.length + depthMaxX.length + depthMinY.length +
+                       depthMaxY.length + subMinX.length + subMaxX.length +
+                       subMinY.length + subMaxY.length;
+        return 8 * refs + 4 * ints + 8 * doubles;
+    }
+
+    static Tree[] grow(Tree[] a, int capacity) {
+        return capacity <= a.length ? a :
+            Arrays.copyOf(a, Math.max(capacity, a.length + (a.length >> 1) + 16));
+    }
+
+    static int[] grow(int[] a, int capacity) {
+        return capacity <= a.length ? a :
+            Arrays.copyOf(a, Math.max(capacity, a.length + (a.length >> 1) + 16));
+    }
+
+    static double[] grow(double[] a, int capacity) {
+        return capacity <= a.length ? a :
+            Arrays.copyOf(a, Math.max(capacity, a.length + (a.length >> 1) + 16));
+    }
+}
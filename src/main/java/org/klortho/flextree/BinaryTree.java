@@ -0,0 +1,308 @@
+package org.klortho.flextree;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A tree in a compact binary file, read through memory-mapping, so that it can be
+ * laid out with LayoutEngine.layout(BinaryTree, File) without making a Tree
+ * object for each node.
+ *
+ * All numbers are big-endian. The file starts with a 32-byte header: the magic
+ * number MAGIC (int), the format VERSION (int), the number of nodes (long), the
+ * offset of the name table, or 0 if there is none (long), and 8 reserved bytes.
+ * Then come the nodes in preorder, RECORD_SIZE bytes each: the number of children
+ * (int), the index of the name in the name table, or -1 (int), the index of the
+ * first node after the node's subtree (long), x_size and y_size (doubles). The
+ * children of node v are at v + 1, end(v + 1), end(end(v + 1)), and so on. The
+ * name table is the number of names (int), followed by each name as the length of
+ * its UTF-8 encoding (int) and the bytes.
+ *
+ * The layout output file has a 16-byte header: OUTPUT_MAGIC (int), VERSION (int)
+ * and the number of nodes (long), followed by x and y (doubles) for each node, in
+ * the same order as the tree file.
+ */
+public final class BinaryTree implements Closeable {
+    public static final int MAGIC = 0x464c5854;          // "FLXT"
+    public static final int OUTPUT_MAGIC = 0x464c584c;   // "FLXL"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32, RECORD_SIZE = 32;
+    public static final int OUTPUT_HEADER_SIZE = 16, OUTPUT_RECORD_SIZE = 16;
+
+    // Fields of the node records.
+    static final int NUM_KIDS = 0, NAME = 4, END = 8, X_SIZE = 16, Y_SIZE = 24;
+    // Fields of the output records.
+    static final int X = 0, Y = 8;
+
+    final MappedRecords records;
+    final String[] names;
+
+    private BinaryTree(MappedRecords records, String[] names) {
+        this.records = records;
+        this.names = names;
+    }
+
+    /**
+     * Map a tree file.
+     */
+    public static BinaryTree open(File f) throws IOException {
+        long count, namesOffset;
+        String[] names = null;
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            if (file.readInt() != MAGIC) throw new IOException(f + " is not a tree file");
+            int version = file.readInt();
+            if (version != VERSION) {
+                throw new IOException(f + " has unknown version " + version);
+            }
+            count = file.readLong();
+            namesOffset = file.readLong();
+            if (namesOffset > 0) {
+                file.seek(namesOffset);
+                names = new String[file.readInt()];
+                for (int i = 0; i < names.length; i++) {
+                    byte[] bytes = new byte[file.readInt()];
+                    file.readFully(bytes);
+                    names[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        finally {
+            file.close();
+        }
+        return new BinaryTree(new MappedRecords(f, HEADER_SIZE, RECORD_SIZE, count, false),
+                              names);
+    }
+
+    public long size() {
+        return records.count;
+    }
+
+    public int numChildren(long v) {
+        return records.getInt(v, NUM_KIDS);
+    }
+
+    /**
+     * The index of the first node after the subtree of v.
+     */
+    public long end(long v) {
+        return records.getLong(v, END);
+    }
+
+    public double x_size(long v) {
+        return records.getDouble(v, X_SIZE);
+    }
+
+    public double y_size(long v) {
+        return records.getDouble(v, Y_SIZE);
+    }
+
+    /**
+     * The name of the node, or null if it doesn't have one.
+     */
+    public String name(long v) {
+        int i = records.getInt(v, NAME);
+        return i < 0 ? null : names[i];
+    }
+
+    public void close() throws IOException {
+        records.close();
+    }
+
+    /**
+     * Write the tree to a file, with the x_size, y_size and name of each node.
+     */
+    public static void write(Tree t, File f) throws IOException {
+        // Preorder, with the index of each node's parent, to work out the ends.
+        ArrayList<Tree> nodes = new ArrayList<Tree>();
+        ArrayList<Integer> parents = new ArrayList<Integer>();
+        ArrayDeque<Tree> toVisit = new ArrayDeque<Tree>();
+        ArrayDeque<Integer> toVisitParents = new ArrayDeque<Integer>();
+        toVisit.push(t);
+        toVisitParents.push(-1);
+        while (!toVisit.isEmpty()) {
+            Tree node = toVisit.pop();
+            int v = nodes.size();
+            nodes.add(node);
+            parents.add(toVisitParents.pop());
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                toVisit.push(node.children.get(i));
+                toVisitParents.push(v);
+            }
+        }
+        int n = nodes.size();
+        // Children come after their parents, so the sizes are done bottom up.
+        long[] sizes = new long[n];
+        for (int v = n - 1; v >= 0; v--) {
+            sizes[v] += 1;
+            if (parents.get(v) >= 0) sizes[parents.get(v)] += sizes[v];
+        }
+
+        int[] numKids = new int[n], nameIndexes = new int[n];
+        long[] ends = new long[n];
+        double[] x_sizes = new double[n], y_sizes = new double[n];
+        NameTable names = new NameTable();
+        for (int v = 0; v < n; v++) {
+            Tree node = nodes.get(v);
+            numKids[v] = node.children.size();
+            nameIndexes[v] = names.index(node.name);
+            ends[v] = v + sizes[v];
+            x_sizes[v] = node.x_size;
+            y_sizes[v] = node.y_size;
+        }
+        write(f, n, numKids, nameIndexes, ends, x_sizes, y_sizes, names.names);
+    }
+
+    // Numbers the distinct names in the order they are first seen.
+    static final class NameTable {
+        final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+        final ArrayList<String> names = new ArrayList<String>();
+
+        int index(String name) {
+            if (name == null) return -1;
+            Integer i = indexes.get(name);
+            if (i == null) {
+                i = names.size();
+                indexes.put(name, i);
+                names.add(name);
+            }
+            return i;
+        }
+    }
+
+    // Write a tree file from the fields of the first n node records.
+    static void write(File f, int n, int[] numKids, int[] nameIndexes, long[] ends, 
+                      double[] x_sizes, double[] y_sizes, ArrayList<String> names) 
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(n);
+            out.writeLong(names.isEmpty() ? 0 : HEADER_SIZE + (long) n * RECORD_SIZE);
+            out.writeLong(0);
+            for (int v = 0; v < n; v++) {
+                out.writeInt(numKids[v]);
+                out.writeInt(nameIndexes[v]);
+                out.writeLong(ends[v]);
+                out.writeDouble(x_sizes[v]);
+                out.writeDouble(y_sizes[v]);
+            }
+            if (!names.isEmpty()) {
+                out.writeInt(names.size());
+                for (String name : names) {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Make Tree objects for the nodes.
+     */
+    public Tree toTree() {
+        long n = size();
+        Tree root = null;
+        // The parents of the nodes to come, and how many children each still needs.
+        ArrayDeque<Tree> parents = new ArrayDeque<Tree>();
+        ArrayDeque<Integer> remaining = new ArrayDeque<Integer>();
+        for (long v = 0; v < n; v++) {
+            Tree node = new Tree(x_size(v), y_size(v));
+            node.name = name(v);
+            if (root == null) {
+                root = node;
+            }
+            else {
+                parents.peek().children.add(node);
+                int r = remaining.pop() - 1;
+                if (r > 0) remaining.push(r);
+                else parents.pop();
+            }
+            if (numChildren(v) > 0) {
+                parents.push(node);
+                remaining.push(numChildren(v));
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Set x and y on the nodes of the tree from a layout output file. The tree
+     * must have the same shape as the one that was laid out.
+     */
+    public static void readLayout(File out, Tree t) throws IOException {
+        ArrayList<Tree> nodes = new ArrayList<Tree>();
+        ArrayDeque<Tree> toVisit = new ArrayDeque<Tree>();
+        toVisit.push(t);
+        while (!toVisit.isEmpty()) {
+            Tree node = toVisit.pop();
+            nodes.add(node);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                toVisit.push(node.children.get(i));
+            }
+        }
+        MappedRecords results = new MappedRecords(out, OUTPUT_HEADER_SIZE,
+            OUTPUT_RECORD_SIZE, nodes.size(), false);
+        try {
+            if (results.header().getInt(0) != OUTPUT_MAGIC ||
+                results.header().getLong(8) != nodes.size())
+            {
+                throw new IOException(out + " is not the layout of this tree");
+            }
+            for (int v = 0; v < nodes.size(); v++) {
+                nodes.get(v).x = results.getDouble(v, X);
+                nodes.get(v).y = results.getDouble(v, Y);
+            }
+        }
+        finally {
+            results.close();
+        }
+    }
+
+    /**
+     * Convert a tree in the JSON format of the test cases to a tree file.
+     */
+    public static void fromJson(File json, File f) throws IOException {
+        write(Tree.fromJson(json), f);
+    }
+
+    /**
+     * Convert a tree file to JSON. If layout isn't null, it's a layout output
+     * file, and x and y are taken from it.
+     */
+    public static void toJson(File f, File layout, File json) throws IOException {
+        BinaryTree bt = open(f);
+        Tree t;
+        try {
+            t = bt.toTree();
+        }
+        finally {
+            bt.close();
+        }
+        if (layout != null) readLayout(layout, t);
+        PrintStream out = new PrintStream(json, "UTF-8");
+        try {
+            out.print(t.toJson());
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -1,11 +1,11 @@
 package org.klortho.flextree;
 
-import java.util.Stack;
-
 /**
- * To use this class, you have to make sure you set the setNodeSizes attribute to true
- * on the layout engine, so that it sets the x_size and y_size attribute on every
- * tree node.  It doesn't do that by default.
+ * To use the Tree constructor, you have to make sure you set the setNodeSizes
+ * attribute to true on the layout engine, so that it sets the x_size and y_size
+ * attribute on every tree node.  It doesn't do that by default. LayoutResult and
+ * LayoutWorkspace give the bounds from the layout itself, without that, and
+ * without another walk of the tree; see LayoutBounds.
  */
 public class BoundingBox {
     double min_x, min_y, max_x, max_y;
@@ -13,23 +13,39 @@ public class BoundingBox {
     public BoundingBox(Tree t) {
         min_x = max_x = t.x;
         min_y = max_y = t.y + t.y_size;
-        Stack<Tree> toVisit = new Stack<Tree>();
-        toVisit.push(t);
-        while (toVisit.size() > 0) {
-            Tree n = toVisit.pop();
-
+        TreeCursor cursor = TreeCursor.preorder().reset(t);
+        for (Tree n = cursor.next(); n != null; n = cursor.next()) {
             min_x = Math.min(min_x, n.x - n.x_size / 2);
             max_x = Math.max(max_x, n.x + n.x_size / 2);
             min_y = Math.min(min_y, n.y);
             max_y = Math.max(max_y, n.y + n.y_size);
-            toVisit.addAll(n.children);
         }
     }
 
+    BoundingBox(double min_x, double min_y, double max_x, double max_y) {
+        this.min_x = min_x;
+        this.min_y = min_y;
+        this.max_x = max_x;
+        this.max_y = max_y;
+    }
+
+    public double min_x() {
+        return min_x;
+    }
+    public double min_y() {
+        return min_y;
+    }
+    public double max_x() {
+        return max_x;
+    }
+    public double max_y() {
+        return max_y;
+    }
+
     public double x_size() {
         return max_x - min_x;
     }
     public double y_size() {
         return max_y - min_y;
     }
-}
\ No newline at end of file
+}
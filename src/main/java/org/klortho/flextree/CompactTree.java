@@ -0,0 +1,175 @@
+package org.klortho.flextree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A tree kept in one arena of parallel primitive arrays, instead of one Tree object
+ * and one Vector per node. Nodes are numbered in the order they are added, with the
+ * root at 0, and linked by first-child, next-sibling and parent indexes, with -1
+ * standing for none. Each node costs 52 bytes, leaf or not, plus 4 once any node
+ * has a name, and there are no locks.
+ *
+ * LayoutEngine.layout(CompactTree) lays it out directly, setting x, y and depth
+ * here. fromTree() and toTree() convert to and from Tree, for callers that want
+ * the object view.
+ */
+public final class CompactTree {
+    int size;
+    int[] parent, firstChild, lastChild, nextSibling, depth;
+    double[] x_size, y_size, x, y;
+    String[] name;   // Null until a node is given a name.
+
+    public CompactTree() {
+        this(16);
+    }
+
+    public CompactTree(int capacity) {
+        capacity = Math.max(capacity, 1);
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        lastChild = new int[capacity];
+        nextSibling = new int[capacity];
+        depth = new int[capacity];
+        x_size = new double[capacity];
+        y_size = new double[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+    }
+
+    /**
+     * Add a node as the last child of parent, and return its index. The first node
+     * added is the root, and its parent must be -1.
+     */
+    public int add(int parent, double x_size, double y_size) {
+        if (size == 0 ? parent != -1 : parent < 0 || parent >= size) {
+            throw new IllegalArgumentException("No node " + parent + " to add a child to");
+        }
+        int v = size++;
+        if (v == this.parent.length) grow(2 * v);
+        this.parent[v] = parent;
+        firstChild[v] = lastChild[v] = nextSibling[v] = -1;
+        depth[v] = parent < 0 ? 0 : depth[parent] + 1;
+        this.x_size[v] = x_size;
+        this.y_size[v] = y_size;
+        x[v] = y[v] = 0;
+        if (name != null) name[v] = null;
+        if (parent >= 0) {
+            if (firstChild[parent] < 0) firstChild[parent] = v;
+            else nextSibling[lastChild[parent]] = v;
+            lastChild[parent] = v;
+        }
+        return v;
+    }
+
+    private void grow(int capacity) {
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        lastChild = Arrays.copyOf(lastChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        depth = Arrays.copyOf(depth, capacity);
+        x_size = Arrays.copyOf(x_size, capacity);
+        y_size = Arrays.copyOf(y_size, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        if (name != null) name = Arrays.copyOf(name, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int parent(int v) {
+        return parent[v];
+    }
+
+    public int firstChild(int v) {
+        return firstChild[v];
+    }
+
+    public int nextSibling(int v) {
+        return nextSibling[v];
+    }
+
+    public int depth(int v) {
+        return depth[v];
+    }
+
+    public double x(int v) {
+        return x[v];
+    }
+
+    public double y(int v) {
+        return y[v];
+    }
+
+    public double x_size(int v) {
+        return x_size[v];
+    }
+
+    public double y_size(int v) {
+        return y_size[v];
+    }
+
+    public void setSize(int v, double x_size, double y_size) {
+        this.x_size[v] = x_size;
+        this.y_size[v] = y_size;
+    }
+
+    public String name(int v) {
+        return name == null ? null : name[v];
+    }
+
+    public void setName(int v, String name) {
+        if (this.name == null) {
+            if (name == null) return;
+            this.name = new String[parent.length];
+        }
+        this.name[v] = name;
+    }
+
+    /**
+     * Copy a Tree, adding its nodes in preorder, with their sizes, names and
+     * positions.
+     */
+    public static CompactTree fromTree(Tree t) {
+        CompactTree c = new CompactTree();
+        ArrayDeque<Tree> toVisit = new ArrayDeque<Tree>();
+        ArrayDeque<Integer> toVisitParents = new ArrayDeque<Integer>();
+        toVisit.push(t);
+        toVisitParents.push(-1);
+        while (!toVisit.isEmpty()) {
+            Tree node = toVisit.pop();
+            int v = c.add(toVisitParents.pop(), node.x_size, node.y_size);
+            c.x[v] = node.x;
+            c.y[v] = node.y;
+            c.setName(v, node.name);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                toVisit.push(node.children.get(i));
+                toVisitParents.push(v);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Make Tree nodes for the nodes, with all of their attributes, including parent
+     * and depth, or return null if there are no nodes.
+     */
+    public Tree toTree() {
+        if (size == 0) return null;
+        Tree[] trees = new Tree[size];
+        for (int v = 0; v < size; v++) {
+            Tree t = trees[v] = new Tree(x_size[v], y_size[v]);
+            t.x = x[v];
+            t.y = y[v];
+            t.depth = depth[v];
+            t.name = name(v);
+            if (parent[v] >= 0) {
+                t.parent = trees[parent[v]];
+                t.parent.children.add(t);
+            }
+        }
+        return trees[0];
+    }
+}
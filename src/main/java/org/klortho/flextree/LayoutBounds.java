@@ -0,0 +1,77 @@
+package org.klortho.flextree;
+
+/**
+ * The extents of a layout, worked out by the array-backed layout as it places the
+ * nodes, so that fitting a viewport doesn't need another walk of the tree. Each
+ * node covers x - x_size / 2 ... x + x_size / 2 and y ... y + y_size, using the
+ * sizes of the layout itself, so setNodeSizes doesn't have to be set.
+ *
+ * There are bounds for the whole tree and for each depth, and, if the engine was
+ * built with setSubtreeBounds(true), for the subtree of each node, by its preorder
+ * number. A LayoutBounds never changes once it is made.
+ */
+public final class LayoutBounds {
+    // The bounds of each depth, and of each subtree, or null.
+    private final double[] depthMinX, depthMaxX, depthMinY, depthMaxY;
+    private final double[] subMinX, subMaxX, subMinY, subMaxY;
+    private final BoundingBox overall;
+
+    LayoutBounds(double[] depthMinX, double[] depthMaxX, double[] depthMinY,
+                 double[] depthMaxY, double[] subMinX, double[] subMaxX,
+                 double[] subMinY, double[] subMaxY)
+    {
+        this.depthMinX = depthMinX;
+        this.depthMaxX = depthMaxX;
+        this.depthMinY = depthMinY;
+        this.depthMaxY = depthMaxY;
+        this.subMinX = subMinX;
+        this.subMaxX = subMaxX;
+        this.subMinY = subMinY;
+        this.subMaxY = subMaxY;
+        double minX = depthMinX[0], maxX = depthMaxX[0],
+               minY = depthMinY[0], maxY = depthMaxY[0];
+        for (int d = 1; d < depthMinX.length; d++) {
+            minX = Math.min(minX, depthMinX[d]);
+            maxX = Math.max(maxX, depthMaxX[d]);
+            minY = Math.min(minY, depthMinY[d]);
+            maxY = Math.max(maxY, depthMaxY[d]);
+        }
+        overall = new BoundingBox(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * The bounds of the whole tree.
+     */
+    public BoundingBox overall() {
+        return overall;
+    }
+
+    /**
+     * The depth of the deepest node.
+     */
+    public int maxDepth() {
+        return depthMinX.length - 1;
+    }
+
+    /**
+     * The bounds of the nodes at depth d.
+     */
+    public BoundingBox depth(int d) {
+        return new BoundingBox(depthMinX[d], depthMinY[d], depthMaxX[d], depthMaxY[d]);
+    }
+
+    public boolean hasSubtreeBounds() {
+        return subMinX != null;
+    }
+
+    /**
+     * The bounds of the subtree of node i, numbered in preorder.
+     */
+    public BoundingBox subtree(int i) {
+        if (subMinX == null) {
+            throw new IllegalStateException(
+                "The engine wasn't built with setSubtreeBounds(true)");
+        }
+        return new BoundingBox(subMinX[i], subMinY[i], subMaxX[i], subMaxY[i]);
+    }
+}
@@ -0,0 +1,186 @@
+package org.klortho.flextree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The differences between two layouts of trees of the same shape, such as the
+ * layouts of one tree by two versions of the engine. Nodes are paired up by their
+ * position in the trees, and a pair differs if x or y differ by more than epsilon,
+ * or if the nodes have different numbers of children, in which case the subtrees
+ * below them aren't compared. The trees are walked without recursion, and every
+ * difference is reported, up to a limit, with the path to the node.
+ *
+ * The displacement of a pair of nodes is the distance between their positions;
+ * the maximum and mean are over all the pairs that were compared.
+ */
+public final class LayoutDiff {
+
+    /**
+     * A node that differs. The path is the index of each node among its parent's
+     * children, from the root's child down, so the root's path is empty.
+     */
+    public static final class Difference {
+        public final int[] path;
+        public final double expectedX, expectedY, actualX, actualY;
+        public final int expectedChildren, actualChildren;
+
+        Difference(int[] path, Tree expected, Tree actual) {
+            this.path = path;
+            expectedX = expected.x;
+            expectedY = expected.y;
+            actualX = actual.x;
+            actualY = actual.y;
+            expectedChildren = expected.children.size();
+            actualChildren = actual.children.size();
+        }
+
+        public double displacement() {
+            return Math.hypot(actualX - expectedX, actualY - expectedY);
+        }
+
+        /**
+         * The path, like "/0/3/1", or "/" for the root.
+         */
+        public String pathString() {
+            if (path.length == 0) return "/";
+            StringBuilder sb = new StringBuilder();
+            for (int i : path) sb.append('/').append(i);
+            return sb.toString();
+        }
+
+        public String toString() {
+            return pathString() + ": x " + expectedX + " <=> " + actualX +
+                   ", y " + expectedY + " <=> " + actualY +
+                   ", children " + expectedChildren + " <=> " + actualChildren;
+        }
+    }
+
+    private final List<Difference> differences;
+    private final int numDifferent, numCompared;
+    private final double maxDisplacement, sumDisplacement;
+
+    private LayoutDiff(List<Difference> differences, int numDifferent, int numCompared,
+                       double maxDisplacement, double sumDisplacement)
+    {
+        this.differences = differences;
+        this.numDifferent = numDifferent;
+        this.numCompared = numCompared;
+        this.maxDisplacement = maxDisplacement;
+        this.sumDisplacement = sumDisplacement;
+    }
+
+    /**
+     * Compare two laid-out trees, reporting every node that differs.
+     */
+    public static LayoutDiff compare(Tree expected, Tree actual, double epsilon) {
+        return compare(expected, actual, epsilon, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Compare two laid-out trees, keeping at most maxReported of the differences,
+     * in preorder. The counts and displacements still cover all of the nodes.
+     */
+    public static LayoutDiff compare(Tree expected, Tree actual, double epsilon,
+                                     int maxReported)
+    {
+        return compare(expected, actual, epsilon, maxReported, false);
+    }
+
+    // Compare two trees only until the first difference, which is kept, for
+    // Tree.deepEquals. The counts and displacements only cover the nodes up to it.
+    static LayoutDiff first(Tree expected, Tree actual, double epsilon) {
+        return compare(expected, actual, epsilon, 1, true);
+    }
+
+    private static LayoutDiff compare(Tree expected, Tree actual, double epsilon,
+                                      int maxReported, boolean stopAtFirst)
+    {
+        List<Difference> differences = new ArrayList<Difference>();
+        int numDifferent = 0, numCompared = 0;
+        double maxDisplacement = 0, sumDisplacement = 0;
+
+        // The pairs of nodes still to compare, with their depths and their indexes
+        // among their parents' children. path[d] is the index of the node at
+        // depth d on the way to the current one.
+        ArrayList<Tree> toVisitE = new ArrayList<Tree>(), toVisitA = new ArrayList<Tree>();
+        int[] depths = new int[16], indexes = new int[16];
+        int[] path = new int[16];
+        toVisitE.add(expected);
+        toVisitA.add(actual);
+        int top = 1;
+        while (top > 0) {
+            top--;
+            Tree e = toVisitE.remove(top), a = toVisitA.remove(top);
+            int depth = depths[top];
+            if (depth >= path.length) path = Arrays.copyOf(path, 2 * path.length);
+            path[depth] = indexes[top];
+
+            // Equal positions count as no difference, even if they're infinite;
+            // NaN differs from everything.
+            double dx = a.x == e.x ? 0 : a.x - e.x, dy = a.y == e.y ? 0 : a.y - e.y;
+            double d = Math.hypot(dx, dy);
+            numCompared++;
+            sumDisplacement += d;
+            if (d > maxDisplacement) maxDisplacement = d;
+            int k = e.children.size();
+            boolean sameShape = k == a.children.size();
+            if (!(Math.abs(dx) <= epsilon) || !(Math.abs(dy) <= epsilon) || !sameShape) {
+                numDifferent++;
+                if (differences.size() < maxReported) {
+                    differences.add(new Difference(Arrays.copyOfRange(path, 1, depth + 1), e, a));
+                }
+                if (stopAtFirst) break;
+            }
+            if (!sameShape) continue;
+
+            if (top + k > depths.length) {
+                depths = Arrays.copyOf(depths, Math.max(2 * depths.length, top + k));
+                indexes = Arrays.copyOf(indexes, depths.length);
+            }
+            for (int i = k - 1; i >= 0; i--) {
+                toVisitE.add(e.children.get(i));
+                toVisitA.add(a.children.get(i));
+                depths[top] = depth + 1;
+                indexes[top++] = i;
+            }
+        }
+        return new LayoutDiff(Collections.unmodifiableList(differences), numDifferent,
+                              numCompared, maxDisplacement, sumDisplacement);
+    }
+
+    public boolean isEqual() {
+        return numDifferent == 0;
+    }
+
+    /**
+     * The differences that were kept, in preorder.
+     */
+    public List<Difference> differences() {
+        return differences;
+    }
+
+    /**
+     * The number of nodes that differ, whether or not they were kept.
+     */
+    public int numDifferent() {
+        return numDifferent;
+    }
+
+    /**
+     * The number of pairs of nodes that were compared.
+     */
+    public int numCompared() {
+        return numCompared;
+    }
+
+    public double maxDisplacement() {
+        return maxDisplacement;
+    }
+
+    public double meanDisplacement() {
+        return numCompared == 0 ? 0 : sumDisplacement / numCompared;
+    }
+}
@@ -1,7 +1,19 @@
 package org.klortho.flextree;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Stack;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * The extended Reingold-Tilford algorithm as described in the paper
@@ -17,6 +29,11 @@ import java.util.Stack;
  *       .setSeparation(s)
  *       ...
  *       .build(); 
+ *
+ * An engine keeps no state of its own between or during layouts, so one instance
+ * can lay out any number of trees at the same time, from different threads, as long
+ * as the separation, spacing and node size functions it was built with are thread 
+ * safe.
  */
 
 public class LayoutEngine {
@@ -27,36 +44,79 @@ public class LayoutEngine {
         abstract double s(Tree a, Tree b);
     }
     
-    // Separation
-    public static final TreeRelation defaultSeparation = new TreeRelation() {
+    /**
+     * A TreeRelation that is described by numbers instead of code: either a
+     * constant, one value for siblings and another for cousins, or a table indexed 
+     * by depth. The engine recognizes these, and computes them inline instead of
+     * calling s() for every pair of nodes it separates.
+     */
+    public static final class RelationSpec implements TreeRelation {
+        final double siblings, cousins;
+        final double[] byDepth;
+        
+        private RelationSpec(double siblings, double cousins, double[] byDepth) {
+            this.siblings = siblings;
+            this.cousins = cousins;
+            this.byDepth = byDepth;
+        }
+
+        // Always returns c.
+        public static RelationSpec constant(double c) {
+            return new RelationSpec(c, c, null);
+        }
+
+        // Returns siblings when the nodes have the same parent, cousins otherwise.
+        public static RelationSpec siblings(double siblings, double cousins) {
+            return new RelationSpec(siblings, cousins, null);
+        }
+
+        // Returns table[d], where d is the depth of the deeper of the two nodes. 
+        // Depths past the end of the table use its last entry.
+        public static RelationSpec byDepth(double[] table) {
+            if (table.length == 0) {
+                throw new IllegalArgumentException("The depth table is empty");
+            }
+            return new RelationSpec(0, 0, table.clone());
+        }
+
         public double s(Tree a, Tree b) {
-            return a.parent == b.parent ? 1 : 2;
+            return s(a.parent == b.parent, a.depth, b.depth);
         }
-    };
-    TreeRelation separation = defaultSeparation;
+
+        double s(boolean sameParent, int depthA, int depthB) {
+            if (byDepth != null) {
+                int d = Math.max(depthA, depthB);
+                return byDepth[Math.min(d, byDepth.length - 1)];
+            }
+            return sameParent ? siblings : cousins;
+        }
+    }
+
+    // Separation
+    public static final TreeRelation defaultSeparation = RelationSpec.siblings(1, 2);
+    final TreeRelation separation;
     
     // Spacing
-    TreeRelation spacing = null;
+    final TreeRelation spacing;
+
+    // Set when separation or spacing is a RelationSpec.
+    final RelationSpec separationSpec, spacingSpec;
     
     // This spacing function is defined for convenience - always returns 0.
-    public static final TreeRelation spacing0 = new TreeRelation() {
-        public double s(Tree a, Tree b) {
-            return 0;
-        }
-    };
+    public static final TreeRelation spacing0 = RelationSpec.constant(0);
     
     // Size
     public static final double[] defaultSize = new double[] {1.0, 1.0};
-    double[] size = defaultSize;
+    final double[] size;
 
     // NodeSizeFixed
-    double[] nodeSizeFixed = null;
+    final double[] nodeSizeFixed;
 
     // NodeSizeFunction - returns an array [x_size, y_size]
     public interface NodeSizeFunction {
         abstract double[] ns(Tree t);
     }
-    NodeSizeFunction nodeSizeFunction = null;
+    final NodeSizeFunction nodeSizeFunction;
     
     // This node size function is defined for convenience -- it gets the node size from
     // x_size and y_size attributes on the Tree node itself.
@@ -65,16 +125,49 @@ public class LayoutEngine {
             return new double[] {t.x_size, t.y_size};
         }
     };
+
+    // PrimitiveNodeSizeFunction - like NodeSizeFunction, but returns x_size and
+    // y_size separately, so that nothing is allocated per node. xSize is called
+    // before ySize for each node.
+    public interface PrimitiveNodeSizeFunction {
+        abstract double xSize(Tree t);
+        abstract double ySize(Tree t);
+    }
+    final PrimitiveNodeSizeFunction primitiveNodeSizeFunction;
+
+    // The allocation-free version of nodeSizeFromTree. Setting nodeSizeFromTree as
+    // the NodeSizeFunction uses this one instead.
+    public static final PrimitiveNodeSizeFunction primitiveNodeSizeFromTree = 
+        new PrimitiveNodeSizeFunction() {
+            public double xSize(Tree t) {
+                return t.x_size;
+            }
+            public double ySize(Tree t) {
+                return t.y_size;
+            }
+        };
     
     // If this is set to true, then the layout engine will set the x_size and y_size
     // attributes on each tree node.
-    boolean setNodeSizes = false;
+    final boolean setNodeSizes;
     
-    // This stores the x_size of the root node, for use with the spacing function
-    double rootXSize;
-
+    // If this is set to true, then the layout is done by ArrayLayout, which keeps its 
+    // per-node state in primitive arrays instead of in WrappedTree objects.
+    final boolean useArrays;
     
+    // If a pool is set, then the layout is done by ArrayLayout, and firstWalk runs
+    // the subtrees with fewer than parallelThreshold nodes as tasks in the pool.
+    final ForkJoinPool pool;
+    public static final int defaultParallelThreshold = 10000;
+    final int parallelThreshold;
+
+    // If this is set to true, then the array-backed layout works out the bounds of
+    // each subtree, as well as those of each depth, for LayoutBounds.
+    final boolean subtreeBounds;
 
+    // If a listener is set, then each layout times its phases and counts the steps
+    // of the algorithm, and passes them to it in a LayoutStats.
+    final LayoutListener listener;
     
     public static class Builder {
         public LayoutEngine build() {
@@ -94,31 +187,69 @@ public class LayoutEngine {
             size = s;
             nodeSizeFixed = null;
             nodeSizeFunction = null;
+            primitiveNodeSizeFunction = null;
             return this;
         }
         public Builder setNodeSizeFixed(double[] nsf) {
             nodeSizeFixed = nsf;
             size = null;
             nodeSizeFunction = null;
+            primitiveNodeSizeFunction = null;
             return this;
         }
         public Builder setNodeSizeFunction(NodeSizeFunction nsf) {
             nodeSizeFunction = nsf;
             size = null;
             nodeSizeFixed = null;
+            primitiveNodeSizeFunction = null;
+            return this;
+        }
+        public Builder setPrimitiveNodeSizeFunction(PrimitiveNodeSizeFunction pnsf) {
+            primitiveNodeSizeFunction = pnsf;
+            size = null;
+            nodeSizeFixed = null;
+            nodeSizeFunction = null;
             return this;
         }
         public Builder setSetNodeSizes(boolean sns) {
             setNodeSizes = sns;
             return this;
         }
+        public Builder setUseArrays(boolean ua) {
+            useArrays = ua;
+            return this;
+        }
+        // The separation, spacing and node size functions must be thread safe
+        // when a pool is set.
+        public Builder setForkJoinPool(ForkJoinPool p) {
+            pool = p;
+            return this;
+        }
+        public Builder setParallelThreshold(int pt) {
+            parallelThreshold = pt;
+            return this;
+        }
+        public Builder setSubtreeBounds(boolean sb) {
+            subtreeBounds = sb;
+            return this;
+        }
+        public Builder setLayoutListener(LayoutListener l) {
+            listener = l;
+            return this;
+        }
         
         private TreeRelation separation = defaultSeparation;
         private TreeRelation spacing = null;
         private double[] size = defaultSize;
         private double[] nodeSizeFixed = null;
         private NodeSizeFunction nodeSizeFunction = null;
+        private PrimitiveNodeSizeFunction primitiveNodeSizeFunction = null;
         private boolean setNodeSizes = false;
+        private boolean useArrays = false;
+        private ForkJoinPool pool = null;
+        private int parallelThreshold = defaultParallelThreshold;
+        private boolean subtreeBounds = false;
+        private LayoutListener listener = null;
     }
     
     public static Builder builder() {
@@ -130,6 +261,7 @@ public class LayoutEngine {
      * Default constructor - when all the defaults are okay.
      */
     public LayoutEngine() {
+        this(builder());
     }
     
     /**
@@ -138,10 +270,24 @@ public class LayoutEngine {
     public LayoutEngine(Builder b) {
         separation = b.separation;
         spacing = b.spacing;
+        separationSpec = separation instanceof RelationSpec ? (RelationSpec) separation : null;
+        spacingSpec = spacing instanceof RelationSpec ? (RelationSpec) spacing : null;
         size = b.size;
         nodeSizeFixed = b.nodeSizeFixed;
-        nodeSizeFunction = b.nodeSizeFunction;
+        if (b.nodeSizeFunction == nodeSizeFromTree) {
+            nodeSizeFunction = null;
+            primitiveNodeSizeFunction = primitiveNodeSizeFromTree;
+        }
+        else {
+            nodeSizeFunction = b.nodeSizeFunction;
+            primitiveNodeSizeFunction = b.primitiveNodeSizeFunction;
+        }
         setNodeSizes = b.setNodeSizes;
+        useArrays = b.useArrays;
+        pool = b.pool;
+        parallelThreshold = b.parallelThreshold;
+        subtreeBounds = b.subtreeBounds;
+        listener = b.listener;
     }
     
     /**
@@ -153,54 +299,374 @@ public class LayoutEngine {
      * Additionally, if setNodeSizes is true, this will set
      *   - x_size
      *   - y_size
+     *
+     * None of the walks recurse on the Java call stack, so arbitrarily deep trees
+     * can be laid out with the default thread stack size.
      */
     public void layout(Tree t) { 
-        WrappedTree wt = new WrappedTree(t);
-        rootXSize = wt.x_size;
-        zerothWalk(wt, 0);
-        firstWalk(wt); 
-        secondWalk(wt, 0);
-
-        // If a fixed tree size is specified, scale x and y based on the extent.
-        // Compute the left-most, right-most, and depth-most nodes for extents.
-        if (size != null) {
-            WrappedTree left = wt,
-                        right = wt,
-                        bottom = wt;
-            Stack<WrappedTree> toVisit = new Stack<WrappedTree>();
-            toVisit.push(wt);
-            while (toVisit.size() > 0) {
-                WrappedTree node = toVisit.pop();
-                if (node.x() < left.x()) left = node;
-                if (node.x() > right.x()) right = node;
-                if (node.depth() > bottom.depth()) bottom = node;
-                toVisit.addAll(Arrays.asList(node.children));
+        if (useArrays || pool != null) {
+            new ArrayLayout().layout(this, t);
+            return;
+        }
+        LayoutStats stats = LayoutStats.start(listener);
+        long start = stats == null ? 0 : System.nanoTime();
+        ArrayList<WrappedTree> nodes = wrap(t, stats);
+        WrappedTree wt = nodes.get(0);
+        if (stats != null) {
+            stats.numNodes = nodes.size();
+            start = stats.loaded(start);
+        }
+        zerothWalk(nodes, 0);
+        if (stats != null) {
+            for (WrappedTree node : nodes) {
+                if (node.depth() > stats.maxDepth) stats.maxDepth = node.depth();
             }
+            start = stats.lap(LayoutStats.Phase.ZEROTH_WALK, start);
+        }
+        firstWalk(nodes, wt.x_size, stats); 
+        if (stats != null) start = stats.lap(LayoutStats.Phase.FIRST_WALK, start);
+        place(wt, stats, start);
+        if (stats != null) stats.done(this, "wrapped", 1);
+    }
 
-            double sep = separation == null ? 0.5 : separation.s(left.t, right.t)/2;
-            double tx = sep - left.x();
-            double kx = size[0] / (right.x() + sep + tx);
-            double ky = size[1] / (bottom.depth() > 0 ? bottom.depth() : 1);
-            
+    // How the nodes are sized, for the layout events.
+    String sizing() {
+        if (size != null) return "size";
+        if (nodeSizeFixed != null) return "nodeSizeFixed";
+        if (primitiveNodeSizeFunction == primitiveNodeSizeFromTree) return "nodeSizeFromTree";
+        if (primitiveNodeSizeFunction != null) return "primitiveNodeSizeFunction";
+        return "nodeSizeFunction";
+    }
+
+    // Compute the final coordinates from the results of firstWalk. Without a fixed
+    // tree size, secondWalk leaves them normalized, so that the root is at x == 0.
+    // With one, it finds the left-most, right-most, and depth-most nodes, and one
+    // more pass scales x and y based on the extent. If stats isn't null, the time
+    // since start is added to it.
+    void place(WrappedTree wt, LayoutStats stats, long start) {
+        if (size == null) {
+            secondWalk(wt, null);
+            if (stats != null) stats.lap(LayoutStats.Phase.SECOND_WALK, start);
+            return;
+        }
+        WrappedTree[] extremes = new WrappedTree[3];
+        secondWalk(wt, extremes);
+        if (stats != null) start = stats.lap(LayoutStats.Phase.SECOND_WALK, start);
+        WrappedTree left = extremes[0],
+                    right = extremes[1],
+                    bottom = extremes[2];
+
+        double sep = separation == null ? 0.5 : separation.s(left.t, right.t)/2;
+        double tx = sep - left.x();
+        double kx = size[0] / (right.x() + sep + tx);
+        double ky = size[1] / (bottom.depth() > 0 ? bottom.depth() : 1);
+        
+        ArrayDeque<WrappedTree> toVisit = new ArrayDeque<WrappedTree>();
+        toVisit.push(wt);
+        while (!toVisit.isEmpty()) {
+            WrappedTree node = toVisit.pop();
+            node.x((node.x() + tx) * kx);
+            node.y(node.depth() * ky);
+            if (setNodeSizes) {
+                node.t.x_size = node.x_size * kx;
+                node.t.y_size = node.y_size * ky;
+            }
+            for (WrappedTree child : node.children) {
+                toVisit.push(child);
+            }
+        }
+        if (stats != null) stats.lap(LayoutStats.Phase.STORE, start);
+    }
+
+    /**
+     * Does the same layout, using the array-backed path with the buffers in the 
+     * given workspace, whether or not useArrays is set. Keep one workspace per 
+     * thread and reuse it, and repeated layouts of similar trees allocate nothing.
+     */
+    public void layout(Tree t, LayoutWorkspace workspace) {
+        workspace.arrays.layout(this, t);
+    }
+
+    /**
+     * Does the same layout, but instead of setting attributes on the Tree nodes,
+     * returns them in a LayoutResult, leaving the tree untouched. Since parent 
+     * and depth aren't set on the nodes either, a separation or spacing function 
+     * that reads them should be a RelationSpec, which gets them from the layout 
+     * itself.
+     */
+    public LayoutResult layoutResult(Tree t) {
+        return new ArrayLayout().layoutResult(this, t);
+    }
+
+    /**
+     * Same as layoutResult(Tree), using the buffers in the given workspace.
+     */
+    public LayoutResult layoutResult(Tree t, LayoutWorkspace workspace) {
+        return workspace.arrays.layoutResult(this, t);
+    }
+
+    /**
+     * Lays out a tree from a binary file without making Tree nodes, and writes 
+     * the coordinates to a memory-mapped output file; see BinaryTree for the 
+     * format. The node sizes come from the file, unless they are fixed, and the 
+     * separation or spacing must be a RelationSpec.
+     */
+    public void layout(BinaryTree t, File out) throws IOException {
+        checkTreeless();
+        if (t.size() == 0) throw new IllegalArgumentException("empty tree");
+        MappedRecords results = new MappedRecords(out, BinaryTree.OUTPUT_HEADER_SIZE,
+            BinaryTree.OUTPUT_RECORD_SIZE, t.size(), true);
+        try {
+            MappedByteBuffer header = results.header();
+            header.putInt(0, BinaryTree.OUTPUT_MAGIC);
+            header.putInt(4, BinaryTree.VERSION);
+            header.putLong(8, t.size());
+            new ArrayLayout().layout(this, t, results);
+            results.force();
+        }
+        finally {
+            results.close();
+        }
+    }
+
+    /**
+     * Lays out a CompactTree directly, setting x, y and depth on it, and the node
+     * sizes if setNodeSizes is set. The node sizes come from the tree, unless they
+     * are fixed, and the separation or spacing must be a RelationSpec.
+     */
+    public void layout(CompactTree t) {
+        layout(t, new LayoutWorkspace());
+    }
+
+    /**
+     * Same as layout(CompactTree), using the buffers in the given workspace.
+     */
+    public void layout(CompactTree t, LayoutWorkspace workspace) {
+        checkTreeless();
+        if (t.size() == 0) throw new IllegalArgumentException("empty tree");
+        workspace.arrays.layout(this, t);
+    }
+
+    // Check that the settings don't need Tree nodes, for the layouts that don't
+    // have any.
+    private void checkTreeless() {
+        if (separation != null && separationSpec == null ||
+            spacing != null && spacingSpec == null) 
+        {
+            throw new IllegalArgumentException(
+                "The separation or spacing must be a RelationSpec");
+        }
+        if (nodeSizeFunction != null || primitiveNodeSizeFunction != null &&
+                                        primitiveNodeSizeFunction != primitiveNodeSizeFromTree)
+        {
+            throw new IllegalArgumentException(
+                "The node sizes can only be fixed, or come from the tree");
+        }
+    }
+
+    /**
+     * Lays out each of the trees as a separate task on the executor, and waits for
+     * them all to finish. The trees must not share any nodes. Returns the time 
+     * each layout took, in the same order as the trees. If any layout throws, 
+     * this rethrows the first exception after the others have finished.
+     */
+    public List<LayoutTiming> layoutAll(Collection<Tree> trees, Executor executor) {
+        try {
+            return layoutAllAsync(trees, executor).join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Like layoutAll(), but returns at once, with a future that completes when 
+     * all of the layouts are done.
+     */
+    public CompletableFuture<List<LayoutTiming>> layoutAllAsync(Collection<Tree> trees,
+                                                                Executor executor) 
+    {
+        final List<CompletableFuture<LayoutTiming>> tasks = 
+            new ArrayList<CompletableFuture<LayoutTiming>>(trees.size());
+        for (final Tree t : trees) {
+            tasks.add(CompletableFuture.supplyAsync(new Supplier<LayoutTiming>() {
+                public LayoutTiming get() {
+                    long start = System.nanoTime();
+                    layout(t);
+                    return new LayoutTiming(t, System.nanoTime() - start);
+                }
+            }, executor));
+        }
+        CompletableFuture<?>[] all = tasks.toArray(new CompletableFuture<?>[tasks.size()]);
+        return CompletableFuture.allOf(all).thenApply(
+            new Function<Void, List<LayoutTiming>>() {
+                public List<LayoutTiming> apply(Void v) {
+                    List<LayoutTiming> timings = new ArrayList<LayoutTiming>(tasks.size());
+                    for (CompletableFuture<LayoutTiming> task : tasks) {
+                        timings.add(task.join());
+                    }
+                    return timings;
+                }
+            });
+    }
+
+    /**
+     * Does the same layout as layout(), but keeps the summaries of the subtree
+     * contours that firstWalk computes, so that after the tree is edited, 
+     * Incremental.relayout() can redo just the part of the layout that changed.
+     * This always uses the WrappedTree path.
+     */
+    public Incremental layoutIncremental(Tree t) {
+        return new Incremental(t);
+    }
+
+    /**
+     * A layout that can be updated after the tree is edited. Unlike the engine, an
+     * Incremental must only be used by one thread at a time. Each internal node
+     * remembers which of the threads and modifiers in its subtree were set when its
+     * children were separated, so that the separation can be undone and redone
+     * without walking the subtrees again.
+     */
+    public class Incremental {
+        WrappedTree root;
+
+        Incremental(Tree t) {
+            layoutAll(t);
+        }
+
+        void layoutAll(Tree t) {
+            ArrayList<WrappedTree> nodes = wrap(t, null);
+            root = nodes.get(0);
+            zerothWalk(nodes, 0);
+            keepUndo(nodes);
+            firstWalk(nodes, root.x_size, null);
+            place(root, null, 0);
+        }
+
+        public Tree getTree() {
+            return root.t;
+        }
+
+        /**
+         * Update the layout after the subtree rooted at `changed` was edited: nodes
+         * inserted or removed anywhere under it, or node sizes changed. When 
+         * children are inserted or deleted, `changed` is their parent. Nothing 
+         * outside of the subtree may have been edited.
+         *
+         * This walks the changed subtree, and separates the children of each of its
+         * ancestors again, from the bottom up. It takes time proportional to the 
+         * size of the subtree plus the contours along that path, followed by one 
+         * pass over the whole tree to write out the coordinates.
+         */
+        public void relayout(Tree changed) {
+            if (changed == root.t) {
+                layoutAll(changed);
+                return;
+            }
+            ArrayList<WrappedTree> path = path(changed);
+            WrappedTree parent = path.get(path.size() - 1);
+            int i = indexOf(parent, changed);
+
+            // The ancestors were separated bottom up, so undo from the top down.
+            for (WrappedTree wt : path) {
+                undo(wt);
+            }
+
+            ArrayList<WrappedTree> nodes = wrap(changed, null);
+            parent.children[i] = nodes.get(0);
+            if (size != null) {
+                // y was overwritten by the scaling, so it has to be redone for all
+                // of the nodes.
+                zerothWalkSubtree(root);
+            }
+            else {
+                zerothWalk(parent);
+                for (WrappedTree wt : nodes) {
+                    zerothWalk(wt);
+                }
+            }
+            keepUndo(nodes);
+            firstWalk(nodes, root.x_size, null);
+            for (int j = path.size() - 1; j >= 0; j--) {
+                firstWalk(path.get(j), root.x_size, null);
+            }
+            place(root, null, 0);
+        }
+
+        // The wrappers of the ancestors of this node, from the root down to its 
+        // parent.
+        ArrayList<WrappedTree> path(Tree changed) {
+            ArrayList<Tree> ancestors = new ArrayList<Tree>();
+            for (Tree t = changed.parent; t != null; t = t.parent) {
+                ancestors.add(t);
+            }
+            if (ancestors.isEmpty() || ancestors.get(ancestors.size() - 1) != root.t) {
+                throw new IllegalArgumentException("Not a node of this layout");
+            }
+            ArrayList<WrappedTree> path = new ArrayList<WrappedTree>();
+            WrappedTree wt = root;
+            path.add(wt);
+            for (int j = ancestors.size() - 2; j >= 0; j--) {
+                wt = wt.children[indexOf(wt, ancestors.get(j))];
+                path.add(wt);
+            }
+            return path;
+        }
+
+        int indexOf(WrappedTree parent, Tree kid) {
+            int i = parent.t.children.indexOf(kid);
+            if (i < 0 || i >= parent.num_children || parent.children[i].t != kid) {
+                throw new IllegalArgumentException(
+                    "The tree was edited outside of the changed subtree");
+            }
+            return i;
+        }
+
+        void keepUndo(ArrayList<WrappedTree> nodes) {
+            for (WrappedTree wt : nodes) {
+                if (wt.num_children > 1) wt.undo = new ThreadUndo[wt.num_children];
+            }
+        }
+
+        // Restore the children of this node, and the extreme nodes of their 
+        // subtrees, to the state they were in before they were separated.
+        void undo(WrappedTree wt) {
+            if (wt.undo != null) {
+                for (int i = wt.num_children - 1; i > 0; i--) {
+                    ThreadUndo u = wt.undo[i];
+                    if (u == null) continue;
+                    if (u.left) u.node.tl = null;
+                    else u.node.tr = null;
+                    u.node.mod = u.mod;
+                    u.node.prelim = u.prelim;
+                    wt.undo[i] = null;
+                }
+            }
+            for (WrappedTree kid : wt.children) {
+                kid.mod = kid.shift = kid.change = 0;
+                setExtremes(kid);
+            }
+        }
+
+        // Set y, parent and depth of every node below this one.
+        void zerothWalkSubtree(WrappedTree wt) {
+            ArrayDeque<WrappedTree> toVisit = new ArrayDeque<WrappedTree>();
             toVisit.push(wt);
-            while (toVisit.size() > 0) {
+            while (!toVisit.isEmpty()) {
                 WrappedTree node = toVisit.pop();
-                node.x((node.x() + tx) * kx);
-                node.y(node.depth() * ky);
-                if (setNodeSizes) {
-                    node.t.x_size *= kx;
-                    node.t.y_size *= ky;
+                zerothWalk(node);
+                for (WrappedTree kid : node.children) {
+                    toVisit.push(kid);
                 }
-                toVisit.addAll(Arrays.asList(node.children));
             }
         }
-        else {
-            normalizeX(wt);
-        }
     }
 
 
-    private class WrappedTree {
+    private static class WrappedTree {
         Tree t;
         double x_size, y_size;
         WrappedTree[] children; 
@@ -210,36 +676,15 @@ public class LayoutEngine {
         WrappedTree tl, tr;          // Left and right thread.                        
         WrappedTree el, er;          // Extreme left and right nodes. 
         double msel, mser;    // Sum of modifiers at the extreme nodes. 
+        ThreadUndo[] undo;    // Only kept by Incremental layouts.
        
-        public WrappedTree(Tree t) {
+        // Only wraps this one node; the children array is filled in by wrap().
+        public WrappedTree(Tree t, double x_size, double y_size) {
             this.t = t;
-            
-            // Set the size attributes of this node, based on whatever method was selected
-            // by the user.
-            if (size != null) {
-                x_size = 1;
-                y_size = 1;
-            }
-            else if (nodeSizeFixed != null) {
-                x_size = nodeSizeFixed[0];
-                y_size = nodeSizeFixed[1];
-            }
-            else {  // use nodeSizeFunction
-                double[] nodeSize = nodeSizeFunction.ns(t);
-                x_size = nodeSize[0];
-                y_size = nodeSize[1];
-            }
-            
-            if (setNodeSizes) {
-                t.x_size = x_size;
-                t.y_size = y_size;
-            }
-
+            this.x_size = x_size;
+            this.y_size = y_size;
             children = new WrappedTree[t.children.size()];
             num_children = children.length;
-            for (int i = 0 ; i < children.length ; i++) {
-                children[i] = new WrappedTree(t.children.get(i));
-            }
         }       
         
         public double x_size() {
@@ -271,13 +716,94 @@ public class LayoutEngine {
         }
     }
 
-    // Recursively set the y coordinate of the children, based on
-    // the y coordinate of the parent, and its height. Also set parent and
-    // depth.
-    void zerothWalk(WrappedTree wt, double initial) {
-        wt.y(initial);
-        wt.depth(0);
-        zerothWalk(wt);
+    // What setLeftThread or setRightThread changed while separating child i from 
+    // its left siblings, kept in undo[i] of the parent.
+    private static class ThreadUndo {
+        WrappedTree node;
+        boolean left;
+        double mod, prelim;
+
+        ThreadUndo(WrappedTree node, boolean left) {
+            this.node = node;
+            this.left = left;
+            this.mod = node.mod;
+            this.prelim = node.prelim;
+        }
+    }
+
+    // Wrap one node, setting its size based on whatever method was selected by the
+    // user. If stats isn't null, the size functions are timed.
+    WrappedTree wrapNode(Tree t, LayoutStats stats) {
+        double x_size, y_size;
+        if (size != null) {
+            x_size = 1;
+            y_size = 1;
+        }
+        else if (nodeSizeFixed != null) {
+            x_size = nodeSizeFixed[0];
+            y_size = nodeSizeFixed[1];
+        }
+        else if (primitiveNodeSizeFunction != null) {
+            long start = stats == null ? 0 : System.nanoTime();
+            x_size = primitiveNodeSizeFunction.xSize(t);
+            y_size = primitiveNodeSizeFunction.ySize(t);
+            if (stats != null) stats.sized(start);
+        }
+        else {  // use nodeSizeFunction
+            long start = stats == null ? 0 : System.nanoTime();
+            double[] nodeSize = nodeSizeFunction.ns(t);
+            x_size = nodeSize[0];
+            y_size = nodeSize[1];
+            if (stats != null) stats.sized(start);
+        }
+        
+        if (setNodeSizes) {
+            t.x_size = x_size;
+            t.y_size = y_size;
+        }
+        return new WrappedTree(t, x_size, y_size);
+    }
+
+    // Wrap every node of the tree, returning the wrappers in preorder. Nodes are
+    // wrapped (and so the node size function is called) in preorder, the same
+    // order in which the recursive constructor used to visit them.
+    ArrayList<WrappedTree> wrap(Tree t, LayoutStats stats) {
+        ArrayList<WrappedTree> nodes = new ArrayList<WrappedTree>();
+        ArrayDeque<WrappedTree> parents = new ArrayDeque<WrappedTree>();
+        ArrayDeque<Integer> indexes = new ArrayDeque<Integer>();
+        WrappedTree root = wrapNode(t, stats);
+        nodes.add(root);
+        if (root.num_children > 0) {
+            parents.push(root);
+            indexes.push(0);
+        }
+        while (!parents.isEmpty()) {
+            WrappedTree p = parents.peek();
+            int i = indexes.pop();
+            if (i + 1 < p.num_children) indexes.push(i + 1);
+            else parents.pop();
+
+            WrappedTree kid = wrapNode(p.t.children.get(i), stats);
+            p.children[i] = kid;
+            nodes.add(kid);
+            if (kid.num_children > 0) {
+                parents.push(kid);
+                indexes.push(0);
+            }
+        }
+        return nodes;
+    }
+
+    // Set the y coordinate of the children, based on the y coordinate of the 
+    // parent, and its height. Also set parent and depth. The nodes are visited 
+    // in preorder, so every parent is done before its children.
+    void zerothWalk(ArrayList<WrappedTree> nodes, double initial) {
+        WrappedTree root = nodes.get(0);
+        root.y(initial);
+        root.depth(0);
+        for (WrappedTree wt : nodes) {
+            zerothWalk(wt);
+        }
     }
     
     void zerothWalk(WrappedTree wt) {
@@ -288,28 +814,41 @@ public class LayoutEngine {
             kid.y(kid_y);
             kid.parent(wt.t);
             kid.depth(kid_depth);
-            zerothWalk(wt.children[i]);
         }
     }
 
-    void firstWalk(WrappedTree wt) {
+    // Visiting the nodes in reverse preorder guarantees that every subtree is 
+    // walked before its parent. The children of a node are independent of each 
+    // other until separate() merges them, so walking all of them before any of 
+    // the merges gives exactly the same result as interleaving the two.
+    // rootXSize is the x_size of the root node, for use with the separation 
+    // function. stats, if it isn't null, gets the counts.
+    void firstWalk(ArrayList<WrappedTree> nodes, double rootXSize, LayoutStats stats) {
+        for (int i = nodes.size() - 1; i >= 0; --i) {
+            firstWalk(nodes.get(i), rootXSize, stats);
+        }
+    }
+
+    // Place the children of this node relative to each other, and the node 
+    // relative to its children. The children must already have been walked.
+    void firstWalk(WrappedTree wt, double rootXSize, LayoutStats stats) {
         if (wt.num_children == 0) { 
             setExtremes(wt); 
             return; 
         }
-        firstWalk(wt.children[0]);
         
         // Create siblings in contour minimal vertical coordinate and index list.
-        IYL ih =  updateIYL(bottom(wt.children[0].el), 0, null);
+        IYL ih =  updateIYL(bottom(wt.children[0].el), 0, null, stats);
+        // The IYL list is as long as the siblings added, less those popped.
+        long popsBefore = stats == null ? 0 : stats.iylPops;
         
         for (int i = 1; i < wt.num_children; i++) {
-            firstWalk(wt.children[i]);
-            
             // Store lowest vertical coordinate while extreme nodes still point in 
             // current subtree.
             double minY = bottom(wt.children[i].er);                                
-            separate(wt, i, ih);
-            ih = updateIYL(minY, i, ih);                                     
+            separate(wt, i, ih, rootXSize, stats);
+            ih = updateIYL(minY, i, ih, stats);                                     
+            if (stats != null) stats.iylLength(i + 1 - (int) (stats.iylPops - popsBefore));
         }
         positionRoot(wt);
         setExtremes(wt);
@@ -329,7 +868,7 @@ public class LayoutEngine {
         }
     }
       
-    void separate(WrappedTree wt, int i, IYL ih) {
+    void separate(WrappedTree wt, int i, IYL ih, double rootXSize, LayoutStats stats) {
         // Right contour node of left siblings and its sum of modifiers.  
         WrappedTree sr = wt.children[i-1]; 
         double mssr = sr.mod;
@@ -337,23 +876,36 @@ public class LayoutEngine {
         // Left contour node of current subtree and its sum of modifiers.  
         WrappedTree cl = wt.children[i]; 
         double mscl = cl.mod;
+
+        // Counts for the stats, which are only kept in local variables until the
+        // end, so that they cost next to nothing when there are no stats.
+        int steps = 0, moves = 0, distributions = 0;
        
         while (sr != null && cl != null) {
+            steps++;
             if (bottom(sr) > ih.lowY) ih = ih.nxt;
           
             // How far to the left of the right side of sr is the left side of cl?
             // First compute the center-to-center distance, then add the something
             // depending on separation/spacing
             double dist = (mssr + sr.prelim) - (mscl + cl.prelim);
-            if (separation != null) {
+            if (separationSpec != null) {
+                dist += separationSpec.s(sr.t, cl.t) * rootXSize;
+            }
+            else if (separation != null) {
                 dist += separation.s(sr.t, cl.t) * rootXSize;
             }
+            else if (spacingSpec != null) {
+                dist += sr.x_size()/2 + cl.x_size()/2 + spacingSpec.s(sr.t, cl.t);
+            }
             else if (spacing != null) {
                 dist += sr.x_size()/2 + cl.x_size()/2 + spacing.s(sr.t, cl.t);
             }
             if (dist > 0) {
                 mscl += dist;
                 moveSubtree(wt, i, ih.index, dist);
+                moves++;
+                if (ih.index != i - 1) distributions++;
             }
             double sy = bottom(sr), 
                    cy = bottom(cl);
@@ -375,6 +927,10 @@ public class LayoutEngine {
         
         // In this case, the left siblings must be taller than the current subtree.  
         else if (sr != null && cl == null) setRightThread(wt, i, sr, mssr);
+
+        if (stats != null) {
+            stats.separated(steps, moves, distributions, (sr == null) != (cl == null));
+        }
     }
 
     void moveSubtree(WrappedTree wt, int i, int si, double dist) {
@@ -399,6 +955,7 @@ public class LayoutEngine {
       
     void setLeftThread(WrappedTree wt, int i, WrappedTree cl, double modsumcl) {
         WrappedTree li = wt.children[0].el;
+        if (wt.undo != null) wt.undo[i] = new ThreadUndo(li, true);
         li.tl = cl;
        
         // Change mod so that the sum of modifier after following thread is correct.  
@@ -416,6 +973,7 @@ public class LayoutEngine {
     // Symmetrical to setLeftThread.  
     void setRightThread(WrappedTree wt, int i, WrappedTree sr, double modsumsr) {
         WrappedTree ri = wt.children[i].er;
+        if (wt.undo != null) wt.undo[i] = new ThreadUndo(ri, false);
         ri.tr = sr;
         double diff = (modsumsr - sr.mod) - wt.children[i].mser;
         ri.mod += diff; 
@@ -434,13 +992,73 @@ public class LayoutEngine {
                       wt.children[wt.num_children - 1].x_size()/2) / 2;
     }
 
-    void secondWalk(WrappedTree wt, double modsum) {
-        modsum += wt.mod;
-        // Set absolute (non-relative) horizontal coordinate.  
-        wt.x(wt.prelim + modsum);
-        addChildSpacing(wt);                                               
-        for (int i = 0; i < wt.num_children; i++) 
-            secondWalk(wt.children[i], modsum);
+    // Visit the nodes in preorder. The most recently visited node at depth d - 1
+    // is always the parent of the current node at depth d, so one sum of 
+    // modifiers per level is all the state that's needed. The same goes for the
+    // running totals that add the intermediate spacing from change and shift;
+    // keeping them per level, instead of adding them to the children's mod, leaves
+    // the results of firstWalk as they were.
+    void secondWalk(WrappedTree root, WrappedTree[] extremes) {
+        double[] modsums = new double[16],
+                 shifts = new double[16],
+                 deltas = new double[16];
+        double rootX = root.prelim + (0 + root.mod);
+        // The extremes so far, and whether wt is in their subtrees. A node that ties
+        // with an extreme replaces it, unless it is in the extreme's subtree; that
+        // picks the same nodes as a search that visits the last child first.
+        WrappedTree left = root, right = root, bottom = root;
+        double leftX = rootX, rightX = rootX;
+        boolean inLeft = true, inRight = true;
+        ArrayDeque<WrappedTree> toVisit = new ArrayDeque<WrappedTree>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            WrappedTree wt = toVisit.pop();
+            int d = wt.depth();
+            if (d >= modsums.length) {
+                modsums = Arrays.copyOf(modsums, 2 * d);
+                shifts = Arrays.copyOf(shifts, 2 * d);
+                deltas = Arrays.copyOf(deltas, 2 * d);
+            }
+            double mod = wt.mod;
+            if (d > 0) {
+                shifts[d - 1] += wt.shift;
+                deltas[d - 1] += shifts[d - 1] + wt.change;
+                mod += deltas[d - 1];
+            }
+            double modsum = (d == 0 ? 0 : modsums[d - 1]) + mod;
+            modsums[d] = modsum;
+            shifts[d] = deltas[d] = 0;
+            
+            // Set absolute (non-relative) horizontal coordinate.  
+            double x = wt.prelim + modsum;
+            if (extremes == null) {
+                wt.x(x - rootX);
+            }
+            else {
+                wt.x(x);
+                if (d <= left.depth()) inLeft = false;
+                if (d <= right.depth()) inRight = false;
+                if (x < leftX || x == leftX && !inLeft) {
+                    left = wt;
+                    leftX = x;
+                    inLeft = true;
+                }
+                if (x > rightX || x == rightX && !inRight) {
+                    right = wt;
+                    rightX = x;
+                    inRight = true;
+                }
+                if (d >= bottom.depth()) bottom = wt;
+            }
+            for (int i = wt.num_children - 1; i >= 0; i--) {
+                toVisit.push(wt.children[i]);
+            }
+        }
+        if (extremes != null) {
+            extremes[0] = left;
+            extremes[1] = right;
+            extremes[2] = bottom;
+        }
     }
 
     void distributeExtra(WrappedTree wt, int i, int si, double dist) {           
@@ -453,16 +1071,6 @@ public class LayoutEngine {
         }                                                                 
     }                                                                    
      
-    // Process change and shift to add intermediate spacing to mod.  
-    void addChildSpacing(WrappedTree wt) {
-        double d = 0, modsumdelta = 0;                                    
-        for (int i = 0; i < wt.num_children; i++) {                                  
-            d += wt.children[i].shift;                                               
-            modsumdelta += d + wt.children[i].change;                                
-            wt.children[i].mod += modsumdelta;                                       
-        }                                                                 
-    }                                                                    
-
     // A linked list of the indexes of left siblings and their lowest vertical coordinate.  
     static class IYL {                                                          
         double lowY; 
@@ -475,25 +1083,14 @@ public class LayoutEngine {
         }                                                                     
     }                                                                       
       
-    IYL updateIYL(double minY, int i, IYL ih) {                         
-        // Remove siblings that are hidden by the new subtree.  
-        while (ih != null && minY >= ih.lowY) ih = ih.nxt;                 
+    IYL updateIYL(double minY, int i, IYL ih, LayoutStats stats) {                         
+        // Remove siblings that are hidden by the new subtree, counting them if
+        // there are stats.
+        while (ih != null && minY >= ih.lowY) {
+            ih = ih.nxt;
+            if (stats != null) stats.iylPops++;
+        }
         // Prepend the new subtree.  
         return new IYL(minY, i, ih);                                       
     }         
-
-    /**
-     * Normalize the x-coordinate, so that the root node is at x == 0.
-     */
-    void normalizeX(WrappedTree wt) {
-        double rootX = wt.x();
-        moveRight(wt, -rootX);
-    }
-
-    public void moveRight(WrappedTree wt, double move) {
-        wt.x(wt.x() + move);
-        for (WrappedTree child : wt.children) {
-            moveRight(child, move);
-        }
-    }
 }
@@ -0,0 +1,181 @@
+package org.klortho.flextree;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for layouts, their phases, and reading and writing
+ * trees as JSON, so that slow layouts show up in recordings along with the shapes
+ * of their trees. The events are:
+ *
+ *   - org.klortho.flextree.Layout: one layout, with the number of nodes, the
+ *     depth, the sizing mode, the path, the number of threads, and the counts of
+ *     LayoutStats.
+ *   - org.klortho.flextree.LayoutPhase: one phase of a layout, named as in
+ *     LayoutStats.Phase. The SIZES phase is inside the LOAD phase, and only the
+ *     array-backed path has it, since the WrappedTree path calls the size
+ *     functions one at a time as it wraps the nodes.
+ *   - org.klortho.flextree.Json: one read or write of a tree as JSON.
+ *
+ * Nothing is made unless a recording has the events enabled. Building the
+ * library needs JDK 11 or later, for jdk.jfr. Only this class uses it, and its
+ * event classes are only loaded if AVAILABLE is true, so the library still runs
+ * on a runtime image without the jdk.jfr module. Setting the system property
+ * flextree.jfr to false turns the events off.
+ */
+final class LayoutEvents {
+    static final boolean AVAILABLE = available();
+
+    private static boolean available() {
+        if (!Boolean.parseBoolean(System.getProperty("flextree.jfr", "true"))) return false;
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+        catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Name("org.klortho.flextree.Layout")
+    @Label("Tree Layout")
+    @Category("flextree")
+    @Description("The layout of one tree")
+    static final class LayoutEvent extends Event {
+        @Label("Nodes")
+        int nodes;
+        @Label("Depth")
+        @Description("The number of levels in the tree")
+        int depth;
+        @Label("Sizing")
+        @Description("How the engine sizes the nodes")
+        String sizing;
+        @Label("Path")
+        @Description("wrapped, arrays, binary or compact")
+        String path;
+        @Label("Threads")
+        int threads;
+        @Label("Separations")
+        long separations;
+        @Label("Contour Steps")
+        long contourSteps;
+        @Label("Subtree Moves")
+        long moveSubtrees;
+        @Label("Threads Set")
+        long threadsSet;
+        @Label("Longest IYL")
+        int maxIYLLength;
+        @Label("IYL Pops")
+        long iylPops;
+    }
+
+    @Name("org.klortho.flextree.LayoutPhase")
+    @Label("Tree Layout Phase")
+    @Category("flextree")
+    @Description("One phase of the layout of a tree")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Nodes")
+        int nodes;
+    }
+
+    @Name("org.klortho.flextree.Json")
+    @Label("Tree JSON")
+    @Category("flextree")
+    @Description("Reading or writing a tree as JSON")
+    static final class JsonEvent extends Event {
+        @Label("Operation")
+        @Description("The method, such as TreeReader.read or Tree.toJson")
+        String operation;
+        @Label("Nodes")
+        int nodes;
+    }
+
+    // One event of each type, only for asking whether the type is enabled, so that
+    // nothing is allocated when it isn't. This is only loaded if AVAILABLE is true.
+    private static final class Probes {
+        static final LayoutEvent layout = new LayoutEvent();
+        static final PhaseEvent phase = new PhaseEvent();
+        static final JsonEvent json = new JsonEvent();
+    }
+
+    private final LayoutEvent layout;
+    private PhaseEvent phase, sizes;
+
+    private LayoutEvents(LayoutEvent layout, PhaseEvent phase) {
+        this.layout = layout;
+        this.phase = phase;
+        layout.begin();
+        phase.begin();
+    }
+
+    /**
+     * Start the events of a layout, or return null if there is no recording that
+     * wants them.
+     */
+    static LayoutEvents start() {
+        if (!AVAILABLE) return null;
+        if (!Probes.layout.isEnabled() && !Probes.phase.isEnabled()) return null;
+        return new LayoutEvents(new LayoutEvent(), new PhaseEvent());
+    }
+
+    // The phase p, which started when the last one ended, is done.
+    void phaseDone(LayoutStats.Phase p, int nodes) {
+        phase.phase = p.name();
+        phase.nodes = nodes;
+        phase.commit();
+        phase = new PhaseEvent();
+        phase.begin();
+    }
+
+    void beginSizes() {
+        sizes = new PhaseEvent();
+        sizes.begin();
+    }
+
+    void endSizes(int nodes) {
+        sizes.phase = LayoutStats.Phase.SIZES.name();
+        sizes.nodes = nodes;
+        sizes.commit();
+        sizes = null;
+    }
+
+    void done(LayoutStats stats, String sizing, String path, int threads) {
+        layout.nodes = stats.numNodes;
+        layout.depth = stats.maxDepth + 1;
+        layout.sizing = sizing;
+        layout.path = path;
+        layout.threads = threads;
+        layout.separations = stats.separations;
+        layout.contourSteps = stats.contourSteps;
+        layout.moveSubtrees = stats.moveSubtrees;
+        layout.threadsSet = stats.threads;
+        layout.maxIYLLength = stats.maxIYLLength;
+        layout.iylPops = stats.iylPops;
+        layout.commit();
+    }
+
+    /**
+     * Start the event of a JSON read or write, or return null if there is no
+     * recording that wants it.
+     */
+    static JsonEvent beginJson() {
+        if (!AVAILABLE || !Probes.json.isEnabled()) return null;
+        JsonEvent event = new JsonEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endJson(JsonEvent event, String operation, int nodes) {
+        event.operation = operation;
+        event.nodes = nodes;
+        event.commit();
+    }
+}
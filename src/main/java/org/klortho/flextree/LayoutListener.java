@@ -0,0 +1,11 @@
+package org.klortho.flextree;
+
+/**
+ * Gets the LayoutStats of each layout done by an engine that was built with
+ * setLayoutListener(). It's called on the thread that did the layout, once the
+ * layout is done, so if the engine is used by several threads at once, it must be
+ * thread safe.
+ */
+public interface LayoutListener {
+    abstract void layoutDone(LayoutStats stats);
+}
@@ -0,0 +1,95 @@
+package org.klortho.flextree;
+
+/**
+ * The layout of a tree, as returned by LayoutEngine.layoutResult(). Nodes are
+ * numbered in preorder, with the root at 0, and each of the attributes that 
+ * layout() would set on a Tree node is kept here in an array, indexed by that 
+ * number. The node sizes are always kept, whether or not setNodeSizes is set.
+ *
+ * A LayoutResult never changes once it is made, so any number of threads can read
+ * it without locking.
+ */
+public final class LayoutResult {
+    private final Tree[] nodes;
+    private final int[] parent, depth;
+    private final double[] x, y, x_size, y_size;
+    private final LayoutBounds bounds;
+
+    LayoutResult(Tree[] nodes, int[] parent, int[] depth, double[] x, double[] y,
+                 double[] x_size, double[] y_size, LayoutBounds bounds) 
+    {
+        this.nodes = nodes;
+        this.parent = parent;
+        this.depth = depth;
+        this.x = x;
+        this.y = y;
+        this.x_size = x_size;
+        this.y_size = y_size;
+        this.bounds = bounds;
+    }
+
+    /**
+     * The number of nodes.
+     */
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * The Tree node with this preorder number.
+     */
+    public Tree node(int i) {
+        return nodes[i];
+    }
+
+    /**
+     * The preorder number of the parent, or -1 for the root.
+     */
+    public int parent(int i) {
+        return parent[i];
+    }
+
+    public int depth(int i) {
+        return depth[i];
+    }
+
+    public double x(int i) {
+        return x[i];
+    }
+
+    public double y(int i) {
+        return y[i];
+    }
+
+    public double x_size(int i) {
+        return x_size[i];
+    }
+
+    public double y_size(int i) {
+        return y_size[i];
+    }
+
+    /**
+     * The bounds of the whole layout, of each depth, and, if the engine was built
+     * with setSubtreeBounds(true), of each subtree.
+     */
+    public LayoutBounds bounds() {
+        return bounds;
+    }
+
+    /**
+     * Set the attributes on the Tree nodes, as layout() would have. Note that 
+     * x_size and y_size are set whether or not setNodeSizes was.
+     */
+    public void apply() {
+        for (int i = 0; i < nodes.length; i++) {
+            Tree t = nodes[i];
+            t.parent = parent[i] < 0 ? null : nodes[parent[i]];
+            t.depth = depth[i];
+            t.x = x[i];
+            t.y = y[i];
+            t.x_size = x_size[i];
+            t.y_size = y_size[i];
+        }
+    }
+}
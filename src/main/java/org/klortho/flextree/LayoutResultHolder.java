@@ -0,0 +1,40 @@
+package org.klortho.flextree;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the latest LayoutResult, so that renderer threads can keep reading a 
+ * complete layout while a new one is being computed. The layout is done into the
+ * holder's own workspace (the back buffer), and only the finished result is 
+ * published (the front buffer), with a single atomic write. Readers never block.
+ */
+public final class LayoutResultHolder {
+    private final AtomicReference<LayoutResult> current = 
+        new AtomicReference<LayoutResult>();
+    private final LayoutWorkspace workspace = new LayoutWorkspace();
+
+    /**
+     * The most recently published result, or null if there hasn't been one.
+     */
+    public LayoutResult get() {
+        return current.get();
+    }
+
+    /**
+     * Publish a result that was computed elsewhere.
+     */
+    public void publish(LayoutResult result) {
+        current.set(result);
+    }
+
+    /**
+     * Lay out the tree, and publish the result. Calls from different threads take
+     * turns, since they share the workspace. The tree must not be changed while
+     * this runs, but readers of earlier results are not affected by it.
+     */
+    public synchronized LayoutResult update(LayoutEngine engine, Tree t) {
+        LayoutResult result = engine.layoutResult(t, workspace);
+        current.set(result);
+        return result;
+    }
+}
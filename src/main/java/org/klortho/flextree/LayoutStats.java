@@ -0,0 +1,203 @@
+package org.klortho.flextree;
+
+/**
+ * Where the time of one layout went, and how much work the algorithm did, for
+ * finding out why a layout is slow. An engine only makes these when it has a
+ * LayoutListener, or when a Flight Recorder recording has the flextree events
+ * enabled (see LayoutEvents); otherwise, the layout does no timing or counting
+ * beyond a local variable or two.
+ *
+ * The phases are:
+ *   - LOAD: wrapping the Tree nodes, or numbering them into arrays.
+ *   - SIZES: the node size callbacks. In the WrappedTree path, these are called
+ *     while the nodes are wrapped, and each call is timed, so this is left out of
+ *     LOAD. Fixed sizes aren't timed.
+ *   - ZEROTH_WALK: setting y, depth and parent.
+ *   - FIRST_WALK: separating subtrees, where the contours are walked.
+ *   - SECOND_WALK: summing the modifiers to get x.
+ *   - STORE: scaling to the fixed tree size, or normalizing x, and copying out
+ *     the results.
+ *
+ * The layouts of BinaryTree and CompactTree and layoutResult() report their stats
+ * too; those of StreamingLayout and Incremental don't.
+ */
+public final class LayoutStats {
+    public enum Phase { LOAD, SIZES, ZEROTH_WALK, FIRST_WALK, SECOND_WALK, STORE }
+
+    final long[] nanos = new long[Phase.values().length];
+    int numNodes, maxDepth;
+    long separations, contourSteps, moveSubtrees, distributeExtras, threads, iylPops;
+    int maxIYLLength;
+    // The Flight Recorder events of this layout, if they're enabled.
+    LayoutEvents events;
+
+    LayoutStats() {}
+
+    // Make the stats of a layout, or return null if neither the listener nor a
+    // recording wants them.
+    static LayoutStats start(LayoutListener listener) {
+        LayoutEvents events = LayoutEvents.start();
+        if (listener == null && events == null) return null;
+        LayoutStats stats = new LayoutStats();
+        stats.events = events;
+        return stats;
+    }
+
+    /**
+     * The time spent in a phase, in nanoseconds.
+     */
+    public long nanos(Phase p) {
+        return nanos[p.ordinal()];
+    }
+
+    /**
+     * The time of the whole layout, in nanoseconds.
+     */
+    public long totalNanos() {
+        long total = 0;
+        for (long t : nanos) total += t;
+        return total;
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * The depth of the deepest node, where the root is at depth 0.
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * The number of times a subtree was separated from its left siblings, which is
+     * one less than the number of children, summed over the nodes.
+     */
+    public long separations() {
+        return separations;
+    }
+
+    /**
+     * The number of pairs of contour nodes compared by separate(). This is
+     * linear in the number of nodes, but the constant depends on the shape.
+     */
+    public long contourSteps() {
+        return contourSteps;
+    }
+
+    public long moveSubtrees() {
+        return moveSubtrees;
+    }
+
+    /**
+     * The number of calls to distributeExtra that spread a move over intermediate
+     * siblings.
+     */
+    public long distributeExtras() {
+        return distributeExtras;
+    }
+
+    /**
+     * The number of left and right threads that were set.
+     */
+    public long threads() {
+        return threads;
+    }
+
+    /**
+     * The longest the IYL list of left siblings got.
+     */
+    public int maxIYLLength() {
+        return maxIYLLength;
+    }
+
+    /**
+     * The number of left siblings removed from IYL lists because a new subtree hid
+     * them. Each sibling is added once, so this is less than the number of nodes.
+     */
+    public long iylPops() {
+        return iylPops;
+    }
+
+    // Add the time since start to phase p, and return the time now. The phase
+    // ends here, so its event is committed.
+    long lap(Phase p, long start) {
+        long now = System.nanoTime();
+        nanos[p.ordinal()] += now - start;
+        if (events != null) events.phaseDone(p, numNodes);
+        return now;
+    }
+
+    // Add the time since start to SIZES, for one size callback of the wrapped path.
+    // That doesn't end a phase, so there's no event.
+    void sized(long start) {
+        nanos[Phase.SIZES.ordinal()] += System.nanoTime() - start;
+    }
+
+    // Start and end the SIZES phase of the array-backed path, which is inside LOAD.
+    long beginSizes() {
+        if (events != null) events.beginSizes();
+        return System.nanoTime();
+    }
+
+    void endSizes(long start, int nodes) {
+        sized(start);
+        if (events != null) events.endSizes(nodes);
+    }
+
+    // Same as lap(LOAD, start), for a load that included the timed size callbacks.
+    long loaded(long start) {
+        long now = lap(Phase.LOAD, start);
+        nanos[Phase.LOAD.ordinal()] -= nanos[Phase.SIZES.ordinal()];
+        return now;
+    }
+
+    // The counts of one call to separate().
+    void separated(int steps, int moves, int distributions, boolean thread) {
+        separations++;
+        contourSteps += steps;
+        moveSubtrees += moves;
+        distributeExtras += distributions;
+        if (thread) threads++;
+    }
+
+    void iylLength(int length) {
+        if (length > maxIYLLength) maxIYLLength = length;
+    }
+
+    // Add the counts of a part of the layout that was done separately.
+    void add(LayoutStats other) {
+        separations += other.separations;
+        contourSteps += other.contourSteps;
+        moveSubtrees += other.moveSubtrees;
+        distributeExtras += other.distributeExtras;
+        threads += other.threads;
+        iylPops += other.iylPops;
+        iylLength(other.maxIYLLength);
+    }
+
+    // The layout is done: commit its event, and pass the stats to the listener.
+    // path is the kind of tree that was laid out, and threads the number that did
+    // the first walk.
+    void done(LayoutEngine engine, String path, int threads) {
+        if (events != null) events.done(this, engine.sizing(), path, threads);
+        if (engine.listener != null) engine.listener.layoutDone(this);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(numNodes).append(" nodes, ").append(maxDepth + 1).append(" levels, in ").append(totalNanos() / 1000).append(" us (");
+        for (Phase p : Phase.values()) {
+            if (p.ordinal() > 0) sb.append(", ");
+            sb.append(p).append(' ').append(nanos(p) / 1000);
+        }
+        sb.append("), ").append(separations).append(" separations, ")
+          .append(contourSteps).append(" contour steps, ")
+          .append(moveSubtrees).append(" moves, ")
+          .append(distributeExtras).append(" distributions, ")
+          .append(threads).append(" threads, IYL up to ").append(maxIYLLength)
+          .append(", ").append(iylPops).append(" IYL pops");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,15 @@
+package org.klortho.flextree;
+
+/**
+ * How long the layout of one tree took, as returned by LayoutEngine.layoutAll().
+ */
+public final class LayoutTiming {
+    public final Tree tree;
+    public final long nanos;
+
+    public LayoutTiming(Tree tree, long nanos) {
+        this.tree = tree;
+        this.nanos = nanos;
+    }
+
+}
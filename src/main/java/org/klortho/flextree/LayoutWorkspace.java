@@ -0,0 +1,45 @@
+package org.klortho.flextree;
+
+/**
+ * The buffers used by the array-backed layout, kept from one layout to the next.
+ * Pass the same workspace to LayoutEngine.layout(Tree, LayoutWorkspace) each
+ * time: once its buffers have grown to fit the largest tree, a layout allocates
+ * nothing (apart from whatever the node size, separation and spacing functions
+ * allocate).
+ *
+ * A workspace can be used with any number of engines, but only by one thread at a
+ * time, so keep one per thread.
+ */
+public final class LayoutWorkspace {
+    ArrayLayout arrays = new ArrayLayout();
+
+    /**
+     * The bounds of the last layout done with this workspace. Nodes are numbered 
+     * in preorder for LayoutBounds.subtree().
+     */
+    public LayoutBounds bounds() {
+        return arrays.bounds();
+    }
+
+    /**
+     * The number of nodes the workspace can lay out without growing.
+     */
+    public int capacity() {
+        return arrays.capacity();
+    }
+
+    /**
+     * An estimate of the number of bytes held by the buffers, counting each
+     * object reference as eight bytes.
+     */
+    public long retainedBytes() {
+        return arrays.retainedBytes();
+    }
+
+    /**
+     * Release all of the buffers. They will grow again on the next layout.
+     */
+    public void trim() {
+        arrays = new ArrayLayout();
+    }
+}
@@ -0,0 +1,114 @@
+package org.klortho.flextree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file of fixed-width records, memory-mapped in chunks so that it can be bigger
+ * than 2 GB, and bigger than the heap. Records are addressed by their index, and
+ * fields by their byte offset within the record. No record straddles two chunks.
+ * The records can follow a header of headerSize bytes, which is mapped on its own.
+ */
+final class MappedRecords implements Closeable {
+    static final int CHUNK_BYTES = 1 << 30;
+
+    final int headerSize, recordSize;
+    final long count;
+    final int recordsPerChunk;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] chunks;
+
+    MappedRecords(File f, int recordSize, long count, boolean create) throws IOException {
+        this(f, 0, recordSize, count, create);
+    }
+
+    /**
+     * Map an existing file, or if create is true, create (or truncate) it to hold
+     * the header and count records.
+     */
+    MappedRecords(File f, int headerSize, int recordSize, long count, boolean create) 
+        throws IOException 
+    {
+        this.headerSize = headerSize;
+        this.recordSize = recordSize;
+        this.count = count;
+        recordsPerChunk = CHUNK_BYTES / recordSize;
+        file = new RandomAccessFile(f, create ? "rw" : "r");
+        try {
+            long length = headerSize + count * recordSize;
+            if (create) {
+                file.setLength(0);
+                file.setLength(length);
+            }
+            else if (file.length() < length) {
+                throw new IOException(f + " is too short for " + count + " records");
+            }
+            FileChannel.MapMode mode = create ? FileChannel.MapMode.READ_WRITE
+                                              : FileChannel.MapMode.READ_ONLY;
+            header = file.getChannel().map(mode, 0, headerSize);
+            int numChunks = (int) ((count + recordsPerChunk - 1) / recordsPerChunk);
+            chunks = new MappedByteBuffer[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                long first = (long) c * recordsPerChunk;
+                long records = Math.min(recordsPerChunk, count - first);
+                chunks[c] = file.getChannel().map(mode, headerSize + first * recordSize,
+                                                  records * recordSize);
+            }
+        }
+        catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    MappedByteBuffer header() {
+        return header;
+    }
+
+    double getDouble(long i, int offset) {
+        return chunks[(int) (i / recordsPerChunk)]
+            .getDouble((int) (i % recordsPerChunk) * recordSize + offset);
+    }
+
+    void putDouble(long i, int offset, double value) {
+        chunks[(int) (i / recordsPerChunk)]
+            .putDouble((int) (i % recordsPerChunk) * recordSize + offset, value);
+    }
+
+    long getLong(long i, int offset) {
+        return chunks[(int) (i / recordsPerChunk)]
+            .getLong((int) (i % recordsPerChunk) * recordSize + offset);
+    }
+
+    void putLong(long i, int offset, long value) {
+        chunks[(int) (i / recordsPerChunk)]
+            .putLong((int) (i % recordsPerChunk) * recordSize + offset, value);
+    }
+
+    int getInt(long i, int offset) {
+        return chunks[(int) (i / recordsPerChunk)]
+            .getInt((int) (i % recordsPerChunk) * recordSize + offset);
+    }
+
+    void putInt(long i, int offset, int value) {
+        chunks[(int) (i / recordsPerChunk)]
+            .putInt((int) (i % recordsPerChunk) * recordSize + offset, value);
+    }
+
+    /**
+     * Write any changes through to the file.
+     */
+    void force() {
+        header.force();
+        for (MappedByteBuffer chunk : chunks) chunk.force();
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
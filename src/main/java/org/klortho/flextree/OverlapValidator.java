@@ -0,0 +1,407 @@
+package org.klortho.flextree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds the pairs of nodes of a layout whose rectangles overlap, in
+ * O(n log n + k log n) time for k overlaps, instead of comparing every pair.
+ * Each node covers x - x_size / 2 ... x + x_size / 2 and y ... y + y_size, and
+ * two nodes overlap if they overlap by more than a tiny fraction of the size of
+ * the whole layout along both axes, so nodes that just touch don't count.
+ *
+ * A line sweeps down the layout, meeting the nodes in order of their top edges.
+ * The nodes that the line crosses are kept in an interval tree over x, which is
+ * searched for the nodes that overlap each new one. With a ForkJoinPool, the
+ * layout is cut into horizontal bands, which are swept in parallel; in a layered
+ * layout, these are bands of depths. Each pair is found in the band where the
+ * lower of its two top edges is.
+ *
+ * Nodes are numbered in preorder, as in LayoutResult.
+ */
+public final class OverlapValidator {
+    // The relative tolerance, the same as that of the tests.
+    static final double TOLERANCE = 1e-11;
+
+    private OverlapValidator() {}
+
+    /**
+     * A pair of overlapping nodes, by preorder number, with a < b.
+     */
+    public static final class Overlap {
+        public final int a, b;
+
+        Overlap(int a, int b) {
+            this.a = Math.min(a, b);
+            this.b = Math.max(a, b);
+        }
+
+        public String toString() {
+            return "(" + a + ", " + b + ")";
+        }
+    }
+
+    /**
+     * Find up to limit overlapping pairs in a LayoutResult, in the order of the
+     * sweep. Pass Integer.MAX_VALUE to find them all.
+     */
+    public static List<Overlap> find(LayoutResult r, int limit) {
+        return find(r, limit, null);
+    }
+
+    public static List<Overlap> find(LayoutResult r, int limit, ForkJoinPool pool) {
+        int n = r.size();
+        double[] x0 = new double[n], x1 = new double[n], y0 = new double[n], y1 = new double[n];
+        for (int i = 0; i < n; i++) {
+            x0[i] = r.x(i) - r.x_size(i) / 2;
+            x1[i] = r.x(i) + r.x_size(i) / 2;
+            y0[i] = r.y(i);
+            y1[i] = r.y(i) + r.y_size(i);
+        }
+        return find(x0, x1, y0, y1, limit, pool);
+    }
+
+    /**
+     * Find up to limit overlapping pairs in a tree that has been laid out, with
+     * the x, y, x_size and y_size set on its nodes. Unless the node sizes come
+     * from the tree, the engine must have been built with setNodeSizes(true).
+     */
+    public static List<Overlap> find(Tree t, int limit) {
+        return find(t, limit, null);
+    }
+
+    public static List<Overlap> find(Tree t, int limit, ForkJoinPool pool) {
+        int n = t.size();
+        double[] x0 = new double[n], x1 = new double[n], y0 = new double[n], y1 = new double[n];
+        TreeCursor cursor = TreeCursor.preorder().reset(t);
+        int i = 0;
+        for (Tree node = cursor.next(); node != null; node = cursor.next(), i++) {
+            x0[i] = node.x - node.x_size / 2;
+            x1[i] = node.x + node.x_size / 2;
+            y0[i] = node.y;
+            y1[i] = node.y + node.y_size;
+        }
+        return find(x0, x1, y0, y1, limit, pool);
+    }
+
+    public static boolean hasOverlaps(LayoutResult r) {
+        return !find(r, 1).isEmpty();
+    }
+
+    public static boolean hasOverlaps(Tree t) {
+        return !find(t, 1).isEmpty();
+    }
+
+    static List<Overlap> find(double[] x0, double[] x1, double[] y0, double[] y1,
+                              int limit, ForkJoinPool pool)
+    {
+        int n = x0.length;
+        List<Overlap> found = new ArrayList<Overlap>();
+        if (n == 0 || limit <= 0) return found;
+        double minX = x0[0], maxX = x1[0], minY = y0[0], maxY = y1[0];
+        for (int i = 1; i < n; i++) {
+            minX = Math.min(minX, x0[i]);
+            maxX = Math.max(maxX, x1[i]);
+            minY = Math.min(minY, y0[i]);
+            maxY = Math.max(maxY, y1[i]);
+        }
+        double tolX = (maxX - minX) * TOLERANCE, tolY = (maxY - minY) * TOLERANCE;
+
+        // Split the nodes into bands by their top edges. Each band also gets the
+        // nodes from the bands above that reach into it.
+        int numBands = pool == null ? 1 : Math.max(1, Math.min(4 * pool.getParallelism(),
+                                                               n / 10000));
+        double bandHeight = (maxY - minY) / numBands;
+        int[] bandOf = new int[n];
+        int[] starts = new int[numBands], carries = new int[numBands];
+        for (int i = 0; i < n; i++) {
+            int b = band(y0[i], minY, bandHeight, numBands);
+            bandOf[i] = b;
+            starts[b]++;
+            for (int c = b + 1; c < numBands && y1[i] - (minY + c * bandHeight) > tolY; c++) {
+                carries[c]++;
+            }
+        }
+        Band[] bands = new Band[numBands];
+        for (int b = 0; b < numBands; b++) {
+            bands[b] = new Band(x0, x1, y0, y1, tolX, tolY, limit, starts[b], carries[b]);
+        }
+        for (int i = 0; i < n; i++) {
+            int b = bandOf[i];
+            bands[b].addStart(i);
+            for (int c = b + 1; c < numBands && y1[i] - (minY + c * bandHeight) > tolY; c++) {
+                bands[c].addCarry(i);
+            }
+        }
+
+        if (pool == null || numBands == 1) {
+            for (Band band : bands) {
+                found.addAll(band.sweep());
+                if (found.size() >= limit) break;
+            }
+        }
+        else {
+            List<ForkJoinTask<List<Overlap>>> tasks = new ArrayList<ForkJoinTask<List<Overlap>>>();
+            for (Band band : bands) tasks.add(pool.submit(band));
+            for (ForkJoinTask<List<Overlap>> task : tasks) found.addAll(task.join());
+        }
+        return found.size() > limit ? new ArrayList<Overlap>(found.subList(0, limit)) : found;
+    }
+
+    // The band whose top, minY + b * bandHeight, is the last one at or above y,
+    // worked out the same way as the tops are when carrying nodes, so that no
+    // node starts above the top of its band.
+    private static int band(double y, double minY, double bandHeight, int numBands) {
+        if (numBands == 1) return 0;
+        int b = Math.max(0, Math.min(numBands - 1, (int) ((y - minY) / bandHeight)));
+        while (b > 0 && y < minY + b * bandHeight) b--;
+        while (b + 1 < numBands && y >= minY + (b + 1) * bandHeight) b++;
+        return b;
+    }
+
+    // One band of the sweep. Its nodes are numbered locally: the carried nodes
+    // first, then those that start in it, in the order of the sweep. Their edges,
+    // the interval tree and the heap of the nodes that the line crosses are all
+    // kept in arrays by local number, with the fields of each node side by side,
+    // since the sweep's time goes mostly to cache misses in the tree.
+    static final class Band extends RecursiveTask<List<Overlap>> {
+        private static final long serialVersionUID = 1L;
+        // Fields of the nodes in the tree and box arrays.
+        static final int LEFT = 0, RIGHT = 1, PRIORITY = 2;
+        static final int X0 = 0, X1 = 1, MAX_X1 = 2;
+
+        final double[] x0, x1, y0, y1;
+        final double tolX, tolY;
+        final int limit, numCarried;
+        final int[] ids;        // The global number of each local node.
+        int numCarriedAdded, numStartsAdded;
+        // The interval tree: a treap ordered by x0, with the maximum x1 of each
+        // subtree.
+        final int[] tree;
+        final double[] box;
+        int root = -1;
+        // A min-heap of the nodes in the tree, by y1.
+        final int[] heap;
+        final double[] ly1;
+        int heapSize;
+        final List<Overlap> found = new ArrayList<Overlap>();
+
+        Band(double[] x0, double[] x1, double[] y0, double[] y1, double tolX, double tolY,
+             int limit, int numStarts, int numCarried)
+        {
+            this.x0 = x0;
+            this.x1 = x1;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.tolX = tolX;
+            this.tolY = tolY;
+            this.limit = limit;
+            this.numCarried = numCarried;
+            int m = numStarts + numCarried;
+            ids = new int[m];
+            tree = new int[3 * m];
+            box = new double[3 * m];
+            heap = new int[m];
+            ly1 = new double[m];
+        }
+
+        void addCarry(int i) {
+            ids[numCarriedAdded++] = i;
+        }
+
+        void addStart(int i) {
+            ids[numCarried + numStartsAdded++] = i;
+        }
+
+        protected List<Overlap> compute() {
+            return sweep();
+        }
+
+        List<Overlap> sweep() {
+            sortByY0(ids, numCarried, ids.length, y0);
+            Random random = new Random(ids.length);
+            for (int v = 0; v < ids.length; v++) {
+                tree[3 * v + PRIORITY] = random.nextInt();
+                box[3 * v + X0] = x0[ids[v]];
+                box[3 * v + X1] = x1[ids[v]];
+                ly1[v] = y1[ids[v]];
+            }
+            for (int v = 0; v < numCarried; v++) insert(v);
+            for (int v = numCarried; v < ids.length && found.size() < limit; v++) {
+                double top = y0[ids[v]];
+                // Drop the nodes that end above this one.
+                while (heapSize > 0 && !(ly1[heap[0]] - top > tolY)) {
+                    root = delete(root, popHeap());
+                }
+                search(root, v);
+                insert(v);
+            }
+            return found;
+        }
+
+        private int left(int t) {
+            return tree[3 * t + LEFT];
+        }
+
+        private int right(int t) {
+            return tree[3 * t + RIGHT];
+        }
+
+        private int priority(int t) {
+            return tree[3 * t + PRIORITY];
+        }
+
+        private void insert(int v) {
+            tree[3 * v + LEFT] = tree[3 * v + RIGHT] = -1;
+            box[3 * v + MAX_X1] = box[3 * v + X1];
+            root = insert(root, v);
+            pushHeap(v);
+        }
+
+        // The order of the treap: by x0, then by local number.
+        private boolean before(int a, int b) {
+            double xa = box[3 * a + X0], xb = box[3 * b + X0];
+            return xa < xb || xa == xb && a < b;
+        }
+
+        private int insert(int t, int v) {
+            if (t < 0) return v;
+            if (before(v, t)) {
+                int l = insert(left(t), v);
+                tree[3 * t + LEFT] = l;
+                if (priority(l) > priority(t)) t = rotateRight(t);
+            }
+            else {
+                int r = insert(right(t), v);
+                tree[3 * t + RIGHT] = r;
+                if (priority(r) > priority(t)) t = rotateLeft(t);
+            }
+            update(t);
+            return t;
+        }
+
+        private int delete(int t, int v) {
+            if (t == v) {
+                int l = left(t), r = right(t);
+                if (l < 0) return r;
+                if (r < 0) return l;
+                if (priority(l) > priority(r)) {
+                    t = rotateRight(t);
+                    tree[3 * t + RIGHT] = delete(right(t), v);
+                }
+                else {
+                    t = rotateLeft(t);
+                    tree[3 * t + LEFT] = delete(left(t), v);
+                }
+            }
+            else if (before(v, t)) {
+                tree[3 * t + LEFT] = delete(left(t), v);
+            }
+            else {
+                tree[3 * t + RIGHT] = delete(right(t), v);
+            }
+            update(t);
+            return t;
+        }
+
+        private int rotateRight(int t) {
+            int l = left(t);
+            tree[3 * t + LEFT] = right(l);
+            tree[3 * l + RIGHT] = t;
+            update(t);
+            update(l);
+            return l;
+        }
+
+        private int rotateLeft(int t) {
+            int r = right(t);
+            tree[3 * t + RIGHT] = left(r);
+            tree[3 * r + LEFT] = t;
+            update(t);
+            update(r);
+            return r;
+        }
+
+        private void update(int t) {
+            double m = box[3 * t + X1];
+            int l = left(t), r = right(t);
+            if (l >= 0) m = Math.max(m, box[3 * l + MAX_X1]);
+            if (r >= 0) m = Math.max(m, box[3 * r + MAX_X1]);
+            box[3 * t + MAX_X1] = m;
+        }
+
+        // Report the nodes in the subtree t that overlap node v. Every node in the
+        // tree reaches below the top of v, but v must also reach below the top of
+        // the node, which it might not if its height is within the tolerance. The
+        // depth of the treap is logarithmic, so this recursion is shallow.
+        private void search(int t, int v) {
+            if (t < 0 || found.size() >= limit) return;
+            double vx0 = box[3 * v + X0], vx1 = box[3 * v + X1];
+            if (!(box[3 * t + MAX_X1] - vx0 > tolX)) return;
+            search(left(t), v);
+            if (vx1 - box[3 * t + X0] > tolX) {
+                if (box[3 * t + X1] - vx0 > tolX && ly1[v] - y0[ids[t]] > tolY &&
+                    found.size() < limit) 
+                {
+                    found.add(new Overlap(ids[v], ids[t]));
+                }
+                search(right(t), v);
+            }
+        }
+
+        private void pushHeap(int v) {
+            int i = heapSize++;
+            double key = ly1[v];
+            while (i > 0) {
+                int p = (i - 1) / 2;
+                if (ly1[heap[p]] <= key) break;
+                heap[i] = heap[p];
+                i = p;
+            }
+            heap[i] = v;
+        }
+
+        private int popHeap() {
+            int top = heap[0];
+            int last = heap[--heapSize];
+            double key = ly1[last];
+            int i = 0;
+            for (;;) {
+                int c = 2 * i + 1;
+                if (c >= heapSize) break;
+                if (c + 1 < heapSize && ly1[heap[c + 1]] < ly1[heap[c]]) c++;
+                if (ly1[heap[c]] >= key) break;
+                heap[i] = heap[c];
+                i = c;
+            }
+            if (heapSize > 0) heap[i] = last;
+            return top;
+        }
+    }
+
+    // Sort a[from] ... a[to - 1] by key, with a bottom-up merge sort.
+    static void sortByY0(int[] a, int from, int to, double[] key) {
+        int n = to - from;
+        int[] src = new int[n], dst = new int[n];
+        System.arraycopy(a, from, src, 0, n);
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    dst[k++] = key[src[j]] < key[src[i]] ? src[j++] : src[i++];
+                }
+                while (i < mid) dst[k++] = src[i++];
+                while (j < hi) dst[k++] = src[j++];
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        System.arraycopy(src, 0, a, from, n);
+    }
+}
@@ -0,0 +1,359 @@
+package org.klortho.flextree;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Makes trees of a chosen shape and number of nodes, in time linear in the number
+ * of nodes, for testing at scale. Each shape is worked out as the index of each
+ * node's parent, with the nodes numbered in preorder, and the node sizes are drawn
+ * in fixed-size chunks, each with its own SplittableRandom split from the seed, so
+ * with a ForkJoinPool they are drawn in parallel, and the tree is the same either
+ * way. Like RandomTreeGenerator, sizes are rounded to halves.
+ *
+ * As well as Tree objects, the tree can be made as a CompactTree, or written
+ * straight to the file format of BinaryTree or the stream of StreamingLayout,
+ * without making a Tree object for each node.
+ *
+ * The shapes are:
+ *   - chain: each node is the only child of the one before.
+ *   - fan: every other node is a child of the root.
+ *   - kAry: the complete k-ary tree, filled level by level.
+ *   - caterpillar: a chain (the spine) with legs leaves hanging off each node.
+ *   - galtonWatson: a Galton-Watson tree with Poisson offspring, conditioned on
+ *     the number of nodes. That's the shape of a uniformly random labelled
+ *     (Cayley) tree, not a uniformly random ordered shape, which would need
+ *     geometric offspring.
+ *   - comb: a root with teeth chains of equal length. Every separate() walks the
+ *     whole contour of the tooth before.
+ *   - staircase: a root with chains of length 1, 2, 3, ..., each deeper than the
+ *     ones before, so that every separate() walks the whole left contour and
+ *     threads the end of it to the new chain.
+ */
+public final class ShapeTreeGenerator implements TreeGenerator {
+    // The node sizes are drawn in chunks of this many nodes.
+    static final int CHUNK = 1 << 14;
+
+    static final int CHAIN = 0, FAN = 1, K_ARY = 2, CATERPILLAR = 3,
+                     GALTON_WATSON = 4, COMB = 5, STAIRCASE = 6;
+
+    final int shape, numNodes, arity;
+    double minWidth = 1, maxWidth = 1, minHeight = 1, maxHeight = 1;
+    long seed = 42;
+    ForkJoinPool pool;
+
+    private ShapeTreeGenerator(int shape, int numNodes, int arity) {
+        if (numNodes < 1) {
+            throw new IllegalArgumentException("A tree needs at least one node");
+        }
+        if (arity < 1) {
+            throw new IllegalArgumentException("The number of children must be at least 1");
+        }
+        this.shape = shape;
+        this.numNodes = numNodes;
+        this.arity = arity;
+    }
+
+    public static ShapeTreeGenerator chain(int numNodes) {
+        return new ShapeTreeGenerator(CHAIN, numNodes, 1);
+    }
+
+    public static ShapeTreeGenerator fan(int numNodes) {
+        return new ShapeTreeGenerator(FAN, numNodes, 1);
+    }
+
+    public static ShapeTreeGenerator kAry(int numNodes, int k) {
+        return new ShapeTreeGenerator(K_ARY, numNodes, k);
+    }
+
+    public static ShapeTreeGenerator caterpillar(int numNodes, int legs) {
+        return new ShapeTreeGenerator(CATERPILLAR, numNodes, legs);
+    }
+
+    public static ShapeTreeGenerator galtonWatson(int numNodes) {
+        return new ShapeTreeGenerator(GALTON_WATSON, numNodes, 1);
+    }
+
+    public static ShapeTreeGenerator comb(int numNodes, int teeth) {
+        return new ShapeTreeGenerator(COMB, numNodes, teeth);
+    }
+
+    public static ShapeTreeGenerator staircase(int numNodes) {
+        return new ShapeTreeGenerator(STAIRCASE, numNodes, 1);
+    }
+
+    /**
+     * Give each node a random width and height in these ranges, instead of 1 by 1.
+     */
+    public ShapeTreeGenerator setNodeSizes(double minWidth, double maxWidth,
+                                           double minHeight, double maxHeight)
+    {
+        this.minWidth = minWidth;
+        this.maxWidth = maxWidth;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+        return this;
+    }
+
+    public ShapeTreeGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public ShapeTreeGenerator setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public Tree makeTree() {
+        int[] parents = parents();
+        double[] sizes = sizes();
+        Tree[] nodes = new Tree[numNodes];
+        for (int v = 0; v < numNodes; v++) {
+            nodes[v] = new Tree(sizes[2 * v], sizes[2 * v + 1]);
+            if (v > 0) nodes[parents[v]].children.add(nodes[v]);
+        }
+        return nodes[0];
+    }
+
+    public CompactTree makeCompactTree() {
+        int[] parents = parents();
+        double[] sizes = sizes();
+        CompactTree t = new CompactTree(numNodes);
+        for (int v = 0; v < numNodes; v++) {
+            t.add(v == 0 ? -1 : parents[v], sizes[2 * v], sizes[2 * v + 1]);
+        }
+        return t;
+    }
+
+    /**
+     * Write the tree in the file format of BinaryTree.
+     */
+    public void writeBinary(File f) throws IOException {
+        int[] parents = parents();
+        double[] sizes = sizes();
+        int n = numNodes;
+        int[] numKids = new int[n], nameIndexes = new int[n];
+        long[] ends = new long[n];
+        double[] x_sizes = new double[n], y_sizes = new double[n];
+        // Children come after their parents, so the subtree sizes are done bottom
+        // up, and then turned into ends.
+        for (int v = n - 1; v >= 0; v--) {
+            ends[v] += 1;
+            if (v > 0) {
+                numKids[parents[v]]++;
+                ends[parents[v]] += ends[v];
+            }
+            ends[v] += v;
+            nameIndexes[v] = -1;
+            x_sizes[v] = sizes[2 * v];
+            y_sizes[v] = sizes[2 * v + 1];
+        }
+        BinaryTree.write(f, n, numKids, nameIndexes, ends, x_sizes, y_sizes,
+                         new ArrayList<String>());
+    }
+
+    /**
+     * Write the tree as the stream of nodes that StreamingLayout.layout() reads.
+     */
+    public void writeNodes(DataOutput out) throws IOException {
+        int[] parents = parents();
+        double[] sizes = sizes();
+        int n = numNodes;
+        int[] numKids = new int[n];
+        for (int v = 1; v < n; v++) numKids[parents[v]]++;
+        out.writeLong(n);
+        out.writeDouble(sizes[0]);
+        // The nodes on the path from the root to the last one seen. A node is done,
+        // and written in postorder, when the next node in preorder isn't its child.
+        int[] path = new int[16];
+        int top = 0;
+        for (int v = 0; v <= n; v++) {
+            int parent = v == n ? -1 : parents[v];
+            while (top > 0 && path[top - 1] != parent) {
+                int u = path[--top];
+                out.writeInt(numKids[u]);
+                out.writeDouble(sizes[2 * u]);
+                out.writeDouble(sizes[2 * u + 1]);
+            }
+            if (v == n) break;
+            if (top == path.length) path = Arrays.copyOf(path, 2 * top);
+            path[top++] = v;
+        }
+    }
+
+    /**
+     * The parent of each node, numbered in preorder, with -1 for the root.
+     */
+    int[] parents() {
+        int n = numNodes;
+        int[] parents = new int[n];
+        parents[0] = -1;
+        switch (shape) {
+        case CHAIN:
+            for (int v = 1; v < n; v++) parents[v] = v - 1;
+            break;
+        case FAN:
+            for (int v = 1; v < n; v++) parents[v] = 0;
+            break;
+        case K_ARY:
+            kAryParents(parents);
+            break;
+        case CATERPILLAR:
+            // Each spine node is followed by its legs, and then the next spine node,
+            // its last child.
+            for (int v = 1; v < n; v++) {
+                int spine = v - v % (arity + 1);
+                parents[v] = spine == v ? v - arity - 1 : spine;
+            }
+            break;
+        case GALTON_WATSON:
+            galtonWatsonParents(parents);
+            break;
+        case COMB:
+            // Each tooth is a chain hanging from the root; the first few are one
+            // longer, when the teeth don't divide the nodes evenly.
+            int length = (n - 1) / arity, longer = (n - 1) % arity;
+            for (int v = 1, tooth = 0; v < n; tooth++) {
+                int end = v + length + (tooth < longer ? 1 : 0);
+                parents[v] = 0;
+                for (v++; v < end; v++) parents[v] = v - 1;
+            }
+            break;
+        case STAIRCASE:
+            for (int v = 1, len = 1; v < n; len++) {
+                int end = Math.min(v + len, n);
+                parents[v] = 0;
+                for (v++; v < end; v++) parents[v] = v - 1;
+            }
+            break;
+        }
+        return parents;
+    }
+
+    // The nodes of a complete k-ary tree are numbered level by level, with the
+    // children of h at k * h + 1 ... k * h + k; this walks them in preorder.
+    private void kAryParents(int[] parents) {
+        int n = numNodes, k = arity;
+        int[] stack = new int[16], stackParents = new int[16];
+        int top = 0;
+        stack[top] = 0;
+        stackParents[top++] = -1;
+        for (int v = 0; top > 0; v++) {
+            int h = stack[--top];
+            parents[v] = stackParents[top];
+            long first = (long) k * h + 1;
+            int last = (int) Math.min(first + k, n) - 1;
+            if (top + k > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * (top + k));
+                stackParents = Arrays.copyOf(stackParents, stack.length);
+            }
+            for (int c = last; c >= first; c--) {
+                stack[top] = c;
+                stackParents[top++] = v;
+            }
+        }
+    }
+
+    // A Poisson Galton-Watson tree conditioned on n nodes, which is distributed as
+    // a uniform Cayley tree: the numbers of children of the nodes in preorder are
+    // those of n - 1 balls thrown into n bins, rotated so that, by the cycle
+    // lemma, they make a tree.
+    private void galtonWatsonParents(int[] parents) {
+        int n = numNodes;
+        SplittableRandom rand = new SplittableRandom(seed).split();
+        int[] numKids = new int[n];
+        for (int i = 0; i < n - 1; i++) numKids[rand.nextInt(n)]++;
+        // The walk that adds numKids - 1 at each step ends at -1; a tree starts just
+        // after the first step where it reaches its lowest point.
+        int s = 0, min = 0, start = 0;
+        for (int i = 0; i < n; i++) {
+            s += numKids[i] - 1;
+            if (s < min) {
+                min = s;
+                start = i + 1;
+            }
+        }
+        // The nodes that are still waiting for children, and how many.
+        int[] open = new int[16], waiting = new int[16];
+        int top = 0;
+        for (int v = 0; v < n; v++) {
+            int k = numKids[(start + v) % n];
+            if (v == 0) parents[v] = -1;
+            else {
+                parents[v] = open[top - 1];
+                if (--waiting[top - 1] == 0) top--;
+            }
+            if (k > 0) {
+                if (top == open.length) {
+                    open = Arrays.copyOf(open, 2 * top);
+                    waiting = Arrays.copyOf(waiting, 2 * top);
+                }
+                open[top] = v;
+                waiting[top++] = k;
+            }
+        }
+    }
+
+    /**
+     * The x_size and y_size of each node, interleaved.
+     */
+    double[] sizes() {
+        final int n = numNodes;
+        final double[] sizes = new double[2 * n];
+        if (minWidth == maxWidth && minHeight == maxHeight) {
+            for (int v = 0; v < n; v++) {
+                sizes[2 * v] = minWidth;
+                sizes[2 * v + 1] = minHeight;
+            }
+            return sizes;
+        }
+        // The chunks get their generators in order, whatever runs them. The first
+        // split is galtonWatsonParents'.
+        SplittableRandom root = new SplittableRandom(seed);
+        root.split();
+        final SplittableRandom[] rands = new SplittableRandom[(n + CHUNK - 1) / CHUNK];
+        for (int c = 0; c < rands.length; c++) rands[c] = root.split();
+        if (pool == null || rands.length == 1) {
+            for (int c = 0; c < rands.length; c++) fillSizes(sizes, rands[c], c);
+        }
+        else {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+                protected void compute() {
+                    RecursiveAction[] tasks = new RecursiveAction[rands.length];
+                    for (int c = 0; c < rands.length; c++) {
+                        final int chunk = c;
+                        tasks[c] = new RecursiveAction() {
+                            private static final long serialVersionUID = 1L;
+                            protected void compute() {
+                                fillSizes(sizes, rands[chunk], chunk);
+                            }
+                        };
+                    }
+                    invokeAll(tasks);
+                }
+            });
+        }
+        return sizes;
+    }
+
+    private void fillSizes(double[] sizes, SplittableRandom rand, int chunk) {
+        int end = Math.min((chunk + 1) * CHUNK, numNodes);
+        for (int v = chunk * CHUNK; v < end; v++) {
+            sizes[2 * v] = randomInRange(rand, minWidth, maxWidth);
+            sizes[2 * v + 1] = randomInRange(rand, minHeight, maxHeight);
+        }
+    }
+
+    private static double randomInRange(SplittableRandom rand, double start, double end) {
+        double r = rand.nextDouble();
+        return Math.rint((start + r * (end - start)) * 2) / 2;
+    }
+}
@@ -0,0 +1,339 @@
+package org.klortho.flextree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A packed R-tree over the rectangles of the nodes of a finished layout, for
+ * finding the nodes in a viewport, or under the mouse, without looking at every
+ * node. Each node covers x - x_size / 2 ... x + x_size / 2 and y ... y + y_size.
+ *
+ * The nodes are sorted by the Hilbert curve value of their centers, and packed
+ * NODE_SIZE to a box, level by level, up to a single root box; everything is kept
+ * in flat arrays. Nodes are numbered in preorder, as in LayoutResult. With a
+ * ForkJoinPool, the rectangles and sort keys are worked out, sorted and packed in
+ * parallel.
+ *
+ * After Incremental.relayout(), update() brings an index that was built from the
+ * Tree up to date. Only one thread may call update() at a time, and not while
+ * another is searching.
+ */
+public final class SpatialIndex {
+    public static final int NODE_SIZE = 16;
+    // Pieces of work smaller than this aren't split up any further.
+    static final int GRAIN = 1 << 14;
+
+    final int n;
+    final Tree[] nodes;
+    // The boxes, as minX, minY, maxX, maxY, with the n leaves first, in Hilbert
+    // order, and then each level of parents, ending with the root.
+    final double[] boxes;
+    // For a leaf, the node's preorder number; for a parent, the position of its
+    // first child.
+    final int[] indices;
+    // The position where each level ends, from the leaves up.
+    final int[] levelEnds;
+
+    private SpatialIndex(Tree[] nodes, int n) {
+        this.n = n;
+        this.nodes = nodes;
+        int levels = 1, numBoxes = n, count = n;
+        while (count > 1) {
+            count = (count + NODE_SIZE - 1) / NODE_SIZE;
+            numBoxes += count;
+            levels++;
+        }
+        boxes = new double[4 * numBoxes];
+        indices = new int[numBoxes];
+        levelEnds = new int[levels];
+    }
+
+    /**
+     * Index the nodes of a LayoutResult.
+     */
+    public static SpatialIndex build(LayoutResult r) {
+        return build(r, null);
+    }
+
+    public static SpatialIndex build(final LayoutResult r, ForkJoinPool pool) {
+        int n = r.size();
+        Tree[] nodes = new Tree[n];
+        for (int i = 0; i < n; i++) nodes[i] = r.node(i);
+        final SpatialIndex index = new SpatialIndex(nodes, n);
+        final double[] rects = new double[4 * n];
+        new Ranges() {
+            void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    rect(rects, i, r.x(i), r.y(i), r.x_size(i), r.y_size(i));
+                }
+            }
+        }.runAll(pool, n);
+        index.pack(rects, pool);
+        return index;
+    }
+
+    /**
+     * Index the nodes of a tree that has been laid out, with the x, y, x_size and
+     * y_size set on its nodes. Unless the node sizes come from the tree, the
+     * engine must have been built with setNodeSizes(true).
+     */
+    public static SpatialIndex build(Tree t) {
+        return build(t, null);
+    }
+
+    public static SpatialIndex build(Tree t, ForkJoinPool pool) {
+        final Tree[] nodes = new Tree[t.size()];
+        TreeCursor cursor = TreeCursor.preorder().reset(t);
+        int n = 0;
+        for (Tree node = cursor.next(); node != null; node = cursor.next()) {
+            nodes[n++] = node;
+        }
+        SpatialIndex index = new SpatialIndex(nodes, n);
+        index.pack(treeRects(nodes, pool), pool);
+        return index;
+    }
+
+    private static double[] treeRects(final Tree[] nodes, ForkJoinPool pool) {
+        final double[] rects = new double[4 * nodes.length];
+        new Ranges() {
+            void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    Tree t = nodes[i];
+                    rect(rects, i, t.x, t.y, t.x_size, t.y_size);
+                }
+            }
+        }.runAll(pool, nodes.length);
+        return rects;
+    }
+
+    private static void rect(double[] rects, int i, double x, double y,
+                             double x_size, double y_size)
+    {
+        rects[4 * i] = x - x_size / 2;
+        rects[4 * i + 1] = y;
+        rects[4 * i + 2] = x + x_size / 2;
+        rects[4 * i + 3] = y + y_size;
+    }
+
+    // Sort the nodes along the Hilbert curve, and build the levels of boxes.
+    private void pack(final double[] rects, ForkJoinPool pool) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY,
+               maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, rects[4 * i]);
+            minY = Math.min(minY, rects[4 * i + 1]);
+            maxX = Math.max(maxX, rects[4 * i + 2]);
+            maxY = Math.max(maxY, rects[4 * i + 3]);
+        }
+        final double x0 = minX, y0 = minY;
+        final double kx = maxX > minX ? 65535 / (maxX - minX) : 0,
+                     ky = maxY > minY ? 65535 / (maxY - minY) : 0;
+        // The Hilbert value in the high half, and the preorder number in the low.
+        final long[] keys = new long[n];
+        new Ranges() {
+            void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    double cx = (rects[4 * i] + rects[4 * i + 2]) / 2,
+                           cy = (rects[4 * i + 1] + rects[4 * i + 3]) / 2;
+                    long h = hilbert((int) ((cx - x0) * kx), (int) ((cy - y0) * ky));
+                    keys[i] = h << 32 | i;
+                }
+            }
+        }.runAll(pool, n);
+        if (pool != null && n > GRAIN) {
+            // parallelSort forks into the pool of the task that calls it.
+            pool.invoke(new RecursiveAction() {
+                protected void compute() {
+                    Arrays.parallelSort(keys);
+                }
+            });
+        }
+        else {
+            Arrays.sort(keys);
+        }
+        new Ranges() {
+            void run(int from, int to) {
+                for (int p = from; p < to; p++) {
+                    int i = (int) keys[p];
+                    indices[p] = i;
+                    System.arraycopy(rects, 4 * i, boxes, 4 * p, 4);
+                }
+            }
+        }.runAll(pool, n);
+        levelEnds[0] = n;
+        buildLevels(pool);
+    }
+
+    // Work out the box of each parent from those of its children, level by level.
+    private void buildLevels(ForkJoinPool pool) {
+        for (int level = 1; level < levelEnds.length; level++) {
+            final int childStart = level == 1 ? 0 : levelEnds[level - 2],
+                      childEnd = levelEnds[level - 1],
+                      start = childEnd;
+            final int count = (childEnd - childStart + NODE_SIZE - 1) / NODE_SIZE;
+            new Ranges() {
+                void run(int from, int to) {
+                    for (int p = from; p < to; p++) {
+                        int first = childStart + p * NODE_SIZE,
+                            last = Math.min(first + NODE_SIZE, childEnd);
+                        double minX = boxes[4 * first], minY = boxes[4 * first + 1],
+                               maxX = boxes[4 * first + 2], maxY = boxes[4 * first + 3];
+                        for (int c = first + 1; c < last; c++) {
+                            minX = Math.min(minX, boxes[4 * c]);
+                            minY = Math.min(minY, boxes[4 * c + 1]);
+                            maxX = Math.max(maxX, boxes[4 * c + 2]);
+                            maxY = Math.max(maxY, boxes[4 * c + 3]);
+                        }
+                        int b = start + p;
+                        boxes[4 * b] = minX;
+                        boxes[4 * b + 1] = minY;
+                        boxes[4 * b + 2] = maxX;
+                        boxes[4 * b + 3] = maxY;
+                        indices[b] = first;
+                    }
+                }
+            }.runAll(pool, count);
+            levelEnds[level] = start + count;
+        }
+    }
+
+    /**
+     * Bring an index that was built from a Tree up to date after its layout was
+     * redone, for instance by Incremental.relayout(). If the tree still has the
+     * same nodes, their boxes are refitted in place, in one pass and without
+     * sorting, and this index is returned. Otherwise, the tree was edited, and a
+     * new index is built. Refitting keeps the old order, so after many edits that
+     * move nodes far, a fresh build gives faster searches.
+     */
+    public SpatialIndex update(Tree t) {
+        TreeCursor cursor = TreeCursor.preorder().reset(t);
+        int i = 0;
+        for (Tree node = cursor.next(); node != null; node = cursor.next(), i++) {
+            if (i >= n || nodes[i] != node) return build(t);
+        }
+        if (i != n) return build(t);
+        for (int p = 0; p < n; p++) {
+            Tree node = nodes[indices[p]];
+            rect(boxes, p, node.x, node.y, node.x_size, node.y_size);
+        }
+        buildLevels(null);
+        return this;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * The Tree node with this preorder number.
+     */
+    public Tree node(int i) {
+        return nodes[i];
+    }
+
+    /**
+     * The preorder numbers of the nodes whose rectangles intersect (or touch) the
+     * given one, in no particular order. This takes time proportional to the
+     * number of boxes on the way down to the nodes that are found.
+     */
+    public int[] search(double minX, double minY, double maxX, double maxY) {
+        int[] found = new int[16];
+        int numFound = 0;
+        if (n == 0) return found;
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = indices.length - 1;
+        while (top > 0) {
+            int b = stack[--top];
+            if (boxes[4 * b] > maxX || boxes[4 * b + 1] > maxY ||
+                boxes[4 * b + 2] < minX || boxes[4 * b + 3] < minY)
+            {
+                continue;
+            }
+            if (b < n) {
+                if (numFound == found.length) found = Arrays.copyOf(found, 2 * numFound);
+                found[numFound++] = indices[b];
+                continue;
+            }
+            int first = indices[b], last = Math.min(first + NODE_SIZE, levelEnd(first));
+            if (top + NODE_SIZE > stack.length) stack = Arrays.copyOf(stack, 2 * stack.length);
+            for (int c = first; c < last; c++) stack[top++] = c;
+        }
+        return Arrays.copyOf(found, numFound);
+    }
+
+    /**
+     * The preorder number of the node whose rectangle contains the point, or -1 if
+     * there is none. If the point is on the edge between two nodes, such as a
+     * parent and a child, the first of them in preorder is returned.
+     */
+    public int nodeAt(double x, double y) {
+        int[] found = search(x, y, x, y);
+        int best = -1;
+        for (int i : found) {
+            if (best < 0 || i < best) best = i;
+        }
+        return best;
+    }
+
+    // The end of the level that holds the box at position b.
+    private int levelEnd(int b) {
+        int level = 0;
+        while (levelEnds[level] <= b) level++;
+        return levelEnds[level];
+    }
+
+    // The distance along a Hilbert curve of order 16 of the point x, y, each from
+    // 0 to 65535, by the bitwise method of "Hacker's Delight", section 16-2.
+    static long hilbert(int x, int y) {
+        long s = 0;
+        for (int i = 15; i >= 0; i--) {
+            int xi = (x >> i) & 1, yi = (y >> i) & 1;
+            s = s << 2 | ((xi * 3) ^ yi);
+            // Rotate the quadrant, so that the curve inside it is oriented the
+            // same way as at the top level.
+            if (yi == 0) {
+                if (xi == 1) {
+                    x = 0xffff - x;
+                    y = 0xffff - y;
+                }
+                int tmp = x;
+                x = y;
+                y = tmp;
+            }
+        }
+        return s;
+    }
+
+    // Runs run() over pieces of 0 ... n, in parallel if there is a pool.
+    private abstract static class Ranges {
+        abstract void run(int from, int to);
+
+        void runAll(ForkJoinPool pool, int n) {
+            if (pool == null || n <= GRAIN) run(0, n);
+            else pool.invoke(new RangeTask(this, 0, n));
+        }
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final Ranges ranges;
+        final int from, to;
+
+        RangeTask(Ranges ranges, int from, int to) {
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                ranges.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(ranges, from, mid), new RangeTask(ranges, mid, to));
+        }
+    }
+}
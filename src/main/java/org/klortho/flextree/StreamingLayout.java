@@ -0,0 +1,390 @@
+package org.klortho.flextree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Lays out a tree that is read as a stream of nodes in postorder, without ever
+ * holding the whole tree in memory.
+ *
+ * The first pass reads the stream and does firstWalk as each node arrives, since
+ * by then all of its children have been walked. It writes the prelim and mod of
+ * every node to a work file. Only the subtrees that are still waiting for their
+ * parent are kept in memory, and of those, only the nodes that are still on their
+ * left or right contours. The second pass reads the work file backwards, visiting
+ * parents before children, and writes the absolute x and y of each node to the
+ * output file.
+ *
+ * The stream is made of DataOutput values: a header with the number of nodes
+ * (long) and the x_size of the root (double), which the separation needs from the
+ * start, followed by one record per node in postorder: the number of children
+ * (int), x_size (double) and y_size (double). writeNodes() writes a Tree in this
+ * format.
+ *
+ * The output file has one record per node, in the same order as the stream: x and
+ * y, as doubles. readResults() sets them on a Tree.
+ *
+ * The node sizes always come from the stream. The engine must not have a fixed
+ * tree size (the default), so set its node size function to nodeSizeFromTree, and
+ * its separation or spacing must be a constant or siblings RelationSpec (as
+ * defaultSeparation and spacing0 are), since there are no Tree nodes to pass to a
+ * TreeRelation. Vertical positions are worked out relative to each subtree, so the
+ * results are exactly the same as those of layout() when the sums of the node
+ * heights are exact, as they are for whole and half numbers.
+ */
+public final class StreamingLayout {
+    final LayoutEngine.RelationSpec separation, spacing;
+
+    // Work file records: prelim, mod, the spacing added to mod by the parent
+    // (delta), y_size and the number of children.
+    static final int PRELIM = 0, MOD = 8, DELTA = 16, Y_SIZE = 24, NUM_KIDS = 32,
+                     WORK_RECORD = 36;
+    // Output file records: x and y.
+    static final int X = 0, Y = 8, OUT_RECORD = 16;
+
+    public StreamingLayout(LayoutEngine engine) {
+        if (engine.size != null) {
+            throw new IllegalArgumentException("A fixed tree size isn't supported; " +
+                "set the node size function to nodeSizeFromTree instead");
+        }
+        separation = engine.separationSpec;
+        spacing = engine.spacingSpec;
+        LayoutEngine.RelationSpec spec = separation != null ? separation : spacing;
+        if (spec == null || spec.byDepth != null) {
+            throw new IllegalArgumentException(
+                "The separation or spacing must be a constant or siblings RelationSpec");
+        }
+    }
+
+    // A node of one of the subtrees that are waiting for their parent. y values
+    // are relative: ely and ery to this node, and dyl and dyr to the thread's
+    // source.
+    static final class Node {
+        final long id;
+        final double x_size, y_size;
+        final boolean leaf;
+        double prelim, mod, shift, change;
+        Node first, last;       // First and last children, while on a contour.
+        Node tl, tr;            // Left and right thread,
+        double dyl, dyr;        // and how far below this node each one points.
+        Node el, er;            // Extreme left and right nodes,
+        double ely, ery;        // their y,
+        double msel, mser;      // and their sums of modifiers.
+
+        Node(long id, double x_size, double y_size, boolean leaf) {
+            this.id = id;
+            this.x_size = x_size;
+            this.y_size = y_size;
+            this.leaf = leaf;
+        }
+    }
+
+    /**
+     * Lay out the tree read from nodes, using work as scratch space, and write the
+     * coordinates to out. Both files are created or overwritten; work can be
+     * deleted afterwards.
+     */
+    public void layout(DataInput nodes, File work, File out) throws IOException {
+        long n = nodes.readLong();
+        double rootXSize = nodes.readDouble();
+        if (n <= 0) throw new IOException("The tree has no nodes");
+        MappedRecords records = new MappedRecords(work, WORK_RECORD, n, true);
+        try {
+            new FirstPass(records, rootXSize).run(nodes);
+            MappedRecords results = new MappedRecords(out, OUT_RECORD, n, true);
+            try {
+                secondPass(records, results);
+                results.force();
+            }
+            finally {
+                results.close();
+            }
+        }
+        finally {
+            records.close();
+        }
+    }
+
+    // firstWalk, the same as LayoutEngine's, except that the children of a node
+    // are the nodes it pops off the stack of finished subtrees, and that the
+    // contour nodes that a separation passes over are pruned, since they are
+    // hidden by the new sibling and will never be on a contour again.
+    final class FirstPass {
+        final MappedRecords records;
+        final double rootXSize;
+        final ArrayList<Node> stack = new ArrayList<Node>();
+        final ArrayLayout.IYL iyl = new ArrayLayout.IYL();
+
+        FirstPass(MappedRecords records, double rootXSize) {
+            this.records = records;
+            this.rootXSize = rootXSize;
+        }
+
+        void run(DataInput nodes) throws IOException {
+            for (long id = 0; id < records.count; id++) {
+                int numKids = nodes.readInt();
+                double x_size = nodes.readDouble(),
+                       y_size = nodes.readDouble();
+                if (numKids < 0 || numKids > stack.size()) {
+                    throw new IOException("Node " + id + " has " + numKids +
+                        " children, but only " + stack.size() + " subtrees are waiting");
+                }
+                Node wt = new Node(id, x_size, y_size, numKids == 0);
+                records.putDouble(id, Y_SIZE, y_size);
+                records.putInt(id, NUM_KIDS, numKids);
+                int from = stack.size() - numKids;
+                Node[] kids = stack.subList(from, stack.size()).toArray(new Node[numKids]);
+                stack.subList(from, stack.size()).clear();
+                firstWalk(wt, kids);
+                stack.add(wt);
+            }
+            if (stack.size() != 1) {
+                throw new IOException("The stream holds " + stack.size() + " trees");
+            }
+            Node root = stack.get(0);
+            writeNode(root, 0);
+        }
+
+        void writeNode(Node wt, double delta) {
+            records.putDouble(wt.id, PRELIM, wt.prelim);
+            records.putDouble(wt.id, MOD, wt.mod);
+            records.putDouble(wt.id, DELTA, delta);
+        }
+
+        // kids are at y == 0, so all the y values here are relative to them.
+        void firstWalk(Node wt, Node[] kids) {
+            int numKids = kids.length;
+            if (numKids == 0) {
+                wt.el = wt.er = wt;
+                return;
+            }
+            iyl.clear(numKids);
+            iyl.update(kids[0].ely + kids[0].el.y_size, 0);
+            for (int i = 1; i < numKids; i++) {
+                double minY = kids[i].ery + kids[i].er.y_size;
+                separate(kids, i);
+                iyl.update(minY, i);
+            }
+
+            Node first = kids[0], last = kids[numKids - 1];
+            wt.prelim = ( first.prelim +
+                          first.mod -
+                          first.x_size/2 +
+                          last.mod +
+                          last.prelim +
+                          last.x_size/2) / 2;
+            wt.el = first.el;
+            wt.ely = wt.y_size + first.ely;
+            wt.msel = first.msel;
+            wt.er = last.er;
+            wt.ery = wt.y_size + last.ery;
+            wt.mser = last.mser;
+            wt.first = first;
+            wt.last = last;
+
+            // The children are finished, apart from the threads that may still be
+            // set on the extremes. Add the spacing from shift and change, the way
+            // secondWalk would.
+            double d = 0, modsumdelta = 0;
+            for (Node kid : kids) {
+                d += kid.shift;
+                modsumdelta += d + kid.change;
+                writeNode(kid, modsumdelta);
+                kid.el = kid.er = null;
+            }
+        }
+
+        void separate(Node[] kids, int i) {
+            // Right contour node of left siblings, its sum of modifiers and its y.
+            Node sr = kids[i - 1];
+            double mssr = sr.mod, ysr = 0;
+
+            // Left contour node of current subtree, its sum of modifiers and its y.
+            Node cl = kids[i];
+            double mscl = cl.mod, ycl = 0;
+
+            int ih = iyl.top;
+            boolean siblings = true;
+            while (sr != null && cl != null) {
+                double sy = ysr + sr.y_size,
+                       cy = ycl + cl.y_size;
+                if (sy > iyl.lowY[ih]) ih--;
+
+                double dist = (mssr + sr.prelim) - (mscl + cl.prelim);
+                if (separation != null) {
+                    dist += separation.s(siblings, 0, 0) * rootXSize;
+                }
+                else {
+                    dist += sr.x_size/2 + cl.x_size/2 + spacing.s(siblings, 0, 0);
+                }
+                siblings = false;
+                if (dist > 0) {
+                    mscl += dist;
+                    moveSubtree(kids, i, iyl.index[ih], dist);
+                }
+
+                // Advance highest node(s) and sum(s) of modifiers, and prune the
+                // ones that are passed over.
+                if (sy <= cy) {
+                    Node next = sr.leaf ? sr.tr : sr.last;
+                    ysr += sr.leaf ? sr.dyr : sr.y_size;
+                    sr.tr = sr.last = null;
+                    sr = next;
+                    if (sr != null) mssr += sr.mod;
+                }
+                if (sy >= cy) {
+                    Node next = cl.leaf ? cl.tl : cl.first;
+                    ycl += cl.leaf ? cl.dyl : cl.y_size;
+                    cl.tl = cl.first = null;
+                    cl = next;
+                    if (cl != null) mscl += cl.mod;
+                }
+            }
+
+            // Set threads and update extreme nodes.
+            if (sr == null && cl != null) setLeftThread(kids, i, cl, mscl, ycl);
+            else if (sr != null && cl == null) setRightThread(kids, i, sr, mssr, ysr);
+        }
+
+        void moveSubtree(Node[] kids, int i, int si, double dist) {
+            kids[i].mod += dist;
+            kids[i].msel += dist;
+            kids[i].mser += dist;
+            if (si != i - 1) {
+                double nr = i - si;
+                kids[si + 1].shift += dist / nr;
+                kids[i].shift -= dist / nr;
+                kids[i].change -= dist - dist / nr;
+            }
+        }
+
+        // The extreme is a leaf that may have been written out already, so it is
+        // written again.
+        void setLeftThread(Node[] kids, int i, Node cl, double modsumcl, double ycl) {
+            Node li = kids[0].el;
+            li.tl = cl;
+            li.dyl = ycl - kids[0].ely;
+            double diff = (modsumcl - cl.mod) - kids[0].msel;
+            li.mod += diff;
+            li.prelim -= diff;
+            records.putDouble(li.id, PRELIM, li.prelim);
+            records.putDouble(li.id, MOD, li.mod);
+            kids[0].el = kids[i].el;
+            kids[0].ely = kids[i].ely;
+            kids[0].msel = kids[i].msel;
+        }
+
+        void setRightThread(Node[] kids, int i, Node sr, double modsumsr, double ysr) {
+            Node ri = kids[i].er;
+            ri.tr = sr;
+            ri.dyr = ysr - kids[i].ery;
+            double diff = (modsumsr - sr.mod) - kids[i].mser;
+            ri.mod += diff;
+            ri.prelim -= diff;
+            records.putDouble(ri.id, PRELIM, ri.prelim);
+            records.putDouble(ri.id, MOD, ri.mod);
+            kids[i].er = kids[i - 1].er;
+            kids[i].ery = kids[i - 1].ery;
+            kids[i].mser = kids[i - 1].mser;
+        }
+    }
+
+    // secondWalk. Reading postorder backwards visits each node before its
+    // descendants, and the children of a node from last to first, so the state
+    // for each level is kept on a stack: the parent's sum of modifiers, the y of
+    // its children, and how many of them are still to come.
+    void secondPass(MappedRecords records, MappedRecords results) {
+        double[] modsums = new double[16],
+                 kidYs = new double[16];
+        int[] remaining = new int[16];
+        int top = -1;
+        double rootX = 0;
+        for (long id = records.count - 1; id >= 0; id--) {
+            while (top >= 0 && remaining[top] == 0) top--;
+            double prelim = records.getDouble(id, PRELIM),
+                   mod = records.getDouble(id, MOD),
+                   y_size = records.getDouble(id, Y_SIZE);
+            int numKids = records.getInt(id, NUM_KIDS);
+            double modsum, y;
+            if (top < 0) {
+                modsum = 0 + mod;
+                y = 0;
+                rootX = prelim + modsum;
+            }
+            else {
+                modsum = modsums[top] + (mod + records.getDouble(id, DELTA));
+                y = kidYs[top];
+                remaining[top]--;
+            }
+            results.putDouble(id, X, (prelim + modsum) - rootX);
+            results.putDouble(id, Y, y);
+            if (numKids > 0) {
+                if (++top == modsums.length) {
+                    modsums = Arrays.copyOf(modsums, 2 * top);
+                    kidYs = Arrays.copyOf(kidYs, 2 * top);
+                    remaining = Arrays.copyOf(remaining, 2 * top);
+                }
+                modsums[top] = modsum;
+                kidYs[top] = y + y_size;
+                remaining[top] = numKids;
+            }
+        }
+    }
+
+    /**
+     * Write the tree in the format that layout() reads, using the x_size and
+     * y_size of each node.
+     */
+    public static void writeNodes(Tree t, DataOutput out) throws IOException {
+        ArrayList<Tree> postorder = postorder(t);
+        out.writeLong(postorder.size());
+        out.writeDouble(t.x_size);
+        for (Tree node : postorder) {
+            out.writeInt(node.children.size());
+            out.writeDouble(node.x_size);
+            out.writeDouble(node.y_size);
+        }
+    }
+
+    /**
+     * Set x and y on the nodes of the tree from an output file of layout(). The
+     * tree must be the one that was written to the stream.
+     */
+    public static void readResults(File out, Tree t) throws IOException {
+        ArrayList<Tree> postorder = postorder(t);
+        MappedRecords results = new MappedRecords(out, OUT_RECORD, postorder.size(), false);
+        try {
+            for (int i = 0; i < postorder.size(); i++) {
+                Tree node = postorder.get(i);
+                node.x = results.getDouble(i, X);
+                node.y = results.getDouble(i, Y);
+            }
+        }
+        finally {
+            results.close();
+        }
+    }
+
+    // Reverse the mirrored preorder.
+    static ArrayList<Tree> postorder(Tree t) {
+        ArrayList<Tree> nodes = new ArrayList<Tree>();
+        ArrayDeque<Tree> toVisit = new ArrayDeque<Tree>();
+        toVisit.push(t);
+        while (!toVisit.isEmpty()) {
+            Tree node = toVisit.pop();
+            nodes.add(node);
+            for (Tree kid : node.children) {
+                toVisit.push(kid);
+            }
+        }
+        for (int i = 0, j = nodes.size() - 1; i < j; i++, j--) {
+            nodes.set(i, nodes.set(j, nodes.get(i)));
+        }
+        return nodes;
+    }
+}
@@ -1,14 +1,18 @@
 package org.klortho.flextree;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Vector;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -35,6 +39,15 @@ public final class Tree {
     // layout.
     public double x_size, y_size;
 
+    // The number of nodes and levels in this subtree, cached by size() and 
+    // getDepth(); subtreeSize is -1 when they aren't known. The node whose 
+    // children list this one was last seen in is container. If the cache of a node
+    // is valid, so are those of all of its descendants. Only nodes with their own
+    // Children list, all of whose descendants have them too, are cached, since
+    // changes to any other list can't be seen.
+    private int subtreeSize = -1, subtreeHeight;
+    private Tree container;
+
     public static ObjectMapper json_mapper;
     static {
         json_mapper = new ObjectMapper();
@@ -48,12 +61,20 @@ public final class Tree {
     public Tree() {
         this.x_size = 1.0;
         this.y_size = 1.0;
-        this.children = new Vector<Tree>();
+        this.children = new Children(this);
         this.parent = null;
         this.x = 0;
         this.y = 0;
     }
 
+    // A node with no children list at all, for TreeReader, which gives each node
+    // its Children once it has read them all, so that none is made to be thrown
+    // away.
+    Tree(Void noChildren) {
+        this.x_size = 1.0;
+        this.y_size = 1.0;
+    }
+
     /**
      * This constructor is used for testing, as it provides a nice clean way of creating
      * the hierarchical test tree.
@@ -61,18 +82,28 @@ public final class Tree {
     public Tree(double x_size, double y_size, Tree ... children) {
         this.x_size = x_size;
         this.y_size = y_size;
-        this.children = new Vector<Tree>();
+        this.children = new Children(this);
         this.children.addAll(Arrays.asList(children));
         this.parent = null;
     }
 
+    // Jackson sets the children through this, so that trees read from JSON keep
+    // them in a Children list, and have their size and depth cached.
+    @JsonProperty("children")
+    private void setChildren(Vector<Tree> kids) {
+        children = new Children(this, kids);
+    }
+
     /**
      *  Create a tree from a JSON file
      */
     public static Tree fromJson(File json) 
       throws IOException
     {
-        return json_mapper.readValue(json, Tree.class);
+        LayoutEvents.JsonEvent event = LayoutEvents.beginJson();
+        Tree t = json_mapper.readValue(json, Tree.class);
+        if (event != null) LayoutEvents.endJson(event, "Tree.fromJson", t.size());
+        return t;
     }
 
     /**
@@ -81,19 +112,23 @@ public final class Tree {
     public String toJson() 
       throws JsonProcessingException
     {
-        return json_mapper.writeValueAsString(this);
+        LayoutEvents.JsonEvent event = LayoutEvents.beginJson();
+        String json = json_mapper.writeValueAsString(this);
+        if (event != null) LayoutEvents.endJson(event, "Tree.toJson", size());
+        return json;
     }
 
 
     /**
-     * Get the total number of nodes in this tree.
+     * Get the total number of nodes in this tree. This is cached, along with the
+     * depth, and kept up to date as children are added and removed, so it only 
+     * takes time the first time it's called after a change. If a node's children
+     * field is replaced, rather than changed, call invalidate() on the node. A
+     * subtree with a children list that isn't the one the node was made with is
+     * counted again every time.
      */
     public int size() {
-        int n = 1;
-        for (Tree node : children) {
-            n += node.size();
-        }
-        return n;
+        return cached() ? subtreeSize : computeStats().size;
     }
     
     public boolean hasChildren() {
@@ -104,20 +139,206 @@ public final class Tree {
      * Get a list of all of the nodes in the tree, in depth-first order.
      */
     public ArrayList<Tree> allNodes() {
-        ArrayList<Tree> nodes = new ArrayList<Tree>();
-        nodes.add(this);
-        for (Tree kid : children) {
-            nodes.addAll(kid.allNodes());
-        }
+        ArrayList<Tree> nodes = new ArrayList<Tree>(size());
+        TreeCursor cursor = TreeCursor.preorder().reset(this);
+        for (Tree t = cursor.next(); t != null; t = cursor.next()) nodes.add(t);
         return nodes;
     }
     
+    /**
+     * Get the number of levels in the tree, which is 1 for a leaf. This is cached,
+     * like size().
+     */
     public int getDepth() {
-        int d = 1;
-        for (Tree child : children) {
-            d = Math.max(d, child.getDepth() + 1);
+        return cached() ? subtreeHeight : computeStats().height;
+    }
+
+    /**
+     * Forget the cached size and depth of this node and its ancestors.
+     */
+    public void invalidate() {
+        for (Tree t = this; t != null && t.subtreeSize >= 0; t = t.container) {
+            t.subtreeSize = -1;
+        }
+    }
+
+    // The cache can only be kept up to date through a Children list.
+    private boolean cached() {
+        return subtreeSize >= 0 && ownsChildren();
+    }
+
+    private boolean ownsChildren() {
+        return children instanceof Children && ((Children) children).owner == this;
+    }
+
+    // The size and depth of a subtree, as they're worked out.
+    private static final class Stats {
+        final Tree node;
+        int next = 0, size = 1, height = 1;
+        boolean cacheable;
+        Stats(Tree node) {
+            this.node = node;
+            cacheable = node.ownsChildren();
+        }
+        void add(int kidSize, int kidHeight, boolean kidCacheable) {
+            size += kidSize;
+            height = Math.max(height, kidHeight + 1);
+            cacheable &= kidCacheable;
+        }
+    }
+
+    // Work out the size and depth of this subtree, children first, without
+    // recursion, only going into the subtrees whose caches aren't valid. The
+    // results are cached on the nodes that can be; the lists are left alone.
+    private Stats computeStats() {
+        ArrayDeque<Stats> stack = new ArrayDeque<Stats>();
+        stack.push(new Stats(this));
+        while (true) {
+            Stats s = stack.peek();
+            Tree t = s.node;
+            if (s.next < t.children.size()) {
+                Tree kid = t.children.get(s.next++);
+                if (kid.cached()) s.add(kid.subtreeSize, kid.subtreeHeight, true);
+                else stack.push(new Stats(kid));
+                continue;
+            }
+            stack.pop();
+            if (s.cacheable) {
+                for (Tree kid : t.children) kid.container = t;
+                t.subtreeSize = s.size;
+                t.subtreeHeight = s.height;
+            }
+            if (stack.isEmpty()) return s;
+            stack.peek().add(s.size, s.height, s.cacheable);
+        }
+    }
+
+    /**
+     * The list of children that Tree nodes are made with. It's a Vector, so that
+     * existing code keeps working, that invalidates the cached size and depth of
+     * its owner whenever it changes.
+     */
+    static final class Children extends Vector<Tree> {
+        private static final long serialVersionUID = 1L;
+        final Tree owner;
+
+        Children(Tree owner) {
+            this.owner = owner;
+        }
+
+        Children(Tree owner, Collection<Tree> kids) {
+            super(kids);
+            this.owner = owner;
+        }
+
+        Children(Tree owner, int capacity) {
+            super(capacity);
+            this.owner = owner;
+        }
+
+        private void changed() {
+            owner.invalidate();
+        }
+
+        public synchronized boolean add(Tree t) {
+            changed();
+            return super.add(t);
+        }
+
+        public void add(int index, Tree t) {
+            changed();
+            super.add(index, t);
+        }
+
+        public synchronized void addElement(Tree t) {
+            changed();
+            super.addElement(t);
+        }
+
+        public synchronized void insertElementAt(Tree t, int index) {
+            changed();
+            super.insertElementAt(t, index);
+        }
+
+        public synchronized boolean addAll(Collection<? extends Tree> c) {
+            changed();
+            return super.addAll(c);
+        }
+
+        public synchronized boolean addAll(int index, Collection<? extends Tree> c) {
+            changed();
+            return super.addAll(index, c);
+        }
+
+        public synchronized Tree set(int index, Tree t) {
+            changed();
+            return super.set(index, t);
+        }
+
+        public synchronized void setElementAt(Tree t, int index) {
+            changed();
+            super.setElementAt(t, index);
+        }
+
+        public synchronized Tree remove(int index) {
+            changed();
+            return super.remove(index);
+        }
+
+        public boolean remove(Object o) {
+            changed();
+            return super.remove(o);
+        }
+
+        public synchronized boolean removeElement(Object o) {
+            changed();
+            return super.removeElement(o);
+        }
+
+        public synchronized void removeElementAt(int index) {
+            changed();
+            super.removeElementAt(index);
+        }
+
+        public synchronized void removeAllElements() {
+            changed();
+            super.removeAllElements();
+        }
+
+        public void clear() {
+            changed();
+            super.clear();
+        }
+
+        public boolean removeAll(Collection<?> c) {
+            changed();
+            return super.removeAll(c);
+        }
+
+        public boolean retainAll(Collection<?> c) {
+            changed();
+            return super.retainAll(c);
+        }
+
+        public boolean removeIf(Predicate<? super Tree> filter) {
+            changed();
+            return super.removeIf(filter);
+        }
+
+        public void replaceAll(UnaryOperator<Tree> operator) {
+            changed();
+            super.replaceAll(operator);
+        }
+
+        protected synchronized void removeRange(int fromIndex, int toIndex) {
+            changed();
+            super.removeRange(fromIndex, toIndex);
+        }
+
+        public synchronized void setSize(int newSize) {
+            changed();
+            super.setSize(newSize);
         }
-        return d;
     }
     
     /**
@@ -144,12 +365,11 @@ public final class Tree {
      * Compare two already-layed-out trees in terms of the positions of 
      * their nodes. Note that it doesn't compare sizes of the nodes, since not
      * every Tree uses x_size and y_size. 
-     * Returns true if they are equal, false if not.
+     * Returns true if they are equal, false if not. To compare within a 
+     * tolerance, or to see every difference, use LayoutDiff.
      */
     public boolean deepEquals(Tree other) {
-        // dummy PrintStream -- output will not be used.
-        PrintStream ps = new PrintStream(new ByteArrayOutputStream());
-        return deepEquals(other, ps);
+        return LayoutDiff.first(this, other, 0).isEqual();
     }
 
     /**
@@ -157,23 +377,47 @@ public final class Tree {
      * to the PrintStream.
      */
     public boolean deepEquals(Tree other, PrintStream ps) {
-        if (x != other.x ||
-            y != other.y ||
-            children.size() != other.children.size()) //return false;
-        {
-            ps.println("mismatch:\n" +
-                    "x: " + x + " <=> " + other.x + "\n" +
-                    "y: " + y + " <=> " + other.y + "\n" +
-                    "number of children: " + children.size() + " <=> " + other.children.size() + "\n"
-            );
-            return false;
-        }
+        LayoutDiff diff = LayoutDiff.first(this, other, 0);
+        if (diff.isEqual()) return true;
+        LayoutDiff.Difference d = diff.differences().get(0);
+        ps.println("mismatch:\n" +
+                "x: " + d.expectedX + " <=> " + d.actualX + "\n" +
+                "y: " + d.expectedY + " <=> " + d.actualY + "\n" +
+                "number of children: " + d.expectedChildren + " <=> " + d.actualChildren + "\n"
+        );
+        return false;
+    }
 
-        for (int i = 0; i < children.size(); ++i) {
-            if (!children.get(i).deepEquals(other.children.get(i), ps)) return false;
+    /**
+     * A 64-bit hash of the shape of this tree and of the x_size and y_size of its
+     * nodes, but not of their names or positions. Trees that are the same input to
+     * the layout have the same hash, so to find those among many trees, hash each
+     * of them once and only compare the trees whose hashes match. It's worked out
+     * in one walk, without recursion, each node mixing its sizes with the hashes of
+     * its children, in order.
+     */
+    public long structuralHash() {
+        // The hashes of the nodes that are done, but whose parent isn't yet.
+        long[] hashes = new long[16];
+        int top = 0;
+        TreeCursor cursor = TreeCursor.postorder().reset(this);
+        for (Tree t = cursor.next(); t != null; t = cursor.next()) {
+            int k = t.children.size();
+            long h = mix(Double.doubleToLongBits(t.x_size) + 0x9e3779b97f4a7c15L);
+            h = mix(h ^ Double.doubleToLongBits(t.y_size));
+            for (int i = top - k; i < top; i++) h = mix(h + hashes[i]);
+            top -= k;
+            if (top == hashes.length) hashes = Arrays.copyOf(hashes, 2 * top);
+            hashes[top++] = mix(h ^ k);
         }
+        return hashes[0];
+    }
 
-        return true;
+    // The finalizer of SplitMix64.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
     }
 
 }
@@ -0,0 +1,143 @@
+package org.klortho.flextree;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * Steps through the nodes of a Tree without recursion, in preorder, postorder or
+ * level order. A cursor keeps its buffer between calls to reset(), so one cursor
+ * can walk any number of trees, and only allocates when a tree is deeper or wider
+ * than any it has walked before. The tree mustn't change during a walk.
+ *
+ *   TreeCursor cursor = TreeCursor.preorder();
+ *   for (Tree node = cursor.reset(t).next(); node != null; node = cursor.next()) ...
+ */
+public final class TreeCursor {
+    static final int PREORDER = 0, POSTORDER = 1, LEVEL_ORDER = 2;
+
+    private final int order;
+    // A stack, or for level order a circular queue, of nodes. For preorder and
+    // level order, ints holds the depth of each node; for postorder, the index of
+    // the node's next child.
+    private Tree[] nodes = new Tree[16];
+    private int[] ints = new int[16];
+    private int top, head;
+    private int depth;
+
+    private TreeCursor(int order) {
+        this.order = order;
+    }
+
+    public static TreeCursor preorder() {
+        return new TreeCursor(PREORDER);
+    }
+
+    public static TreeCursor postorder() {
+        return new TreeCursor(POSTORDER);
+    }
+
+    public static TreeCursor levelOrder() {
+        return new TreeCursor(LEVEL_ORDER);
+    }
+
+    /**
+     * Start a walk of the tree t.
+     */
+    public TreeCursor reset(Tree t) {
+        // Let go of the nodes of an unfinished walk.
+        Arrays.fill(nodes, null);
+        head = top = 0;
+        depth = -1;
+        nodes[top] = t;
+        ints[top++] = 0;
+        return this;
+    }
+
+    /**
+     * The next node, or null at the end of the walk.
+     */
+    public Tree next() {
+        if (order == LEVEL_ORDER) return nextInLevelOrder();
+        if (top == 0) return null;
+        if (order == PREORDER) {
+            Tree t = nodes[--top];
+            nodes[top] = null;
+            depth = ints[top];
+            Vector<Tree> kids = t.children;
+            ensureCapacity(top + kids.size());
+            for (int i = kids.size() - 1; i >= 0; i--) {
+                nodes[top] = kids.get(i);
+                ints[top++] = depth + 1;
+            }
+            return t;
+        }
+        // Postorder: go down the leftmost unvisited children to a node that has
+        // none left.
+        for (;;) {
+            Tree t = nodes[top - 1];
+            int i = ints[top - 1];
+            if (i < t.children.size()) {
+                ints[top - 1] = i + 1;
+                ensureCapacity(top + 1);
+                nodes[top] = t.children.get(i);
+                ints[top++] = 0;
+            }
+            else {
+                nodes[--top] = null;
+                depth = top;
+                return t;
+            }
+        }
+    }
+
+    private Tree nextInLevelOrder() {
+        if (head == top) return null;
+        int mask = nodes.length - 1;
+        Tree t = nodes[head & mask];
+        nodes[head & mask] = null;
+        depth = ints[head & mask];
+        head++;
+        Vector<Tree> kids = t.children;
+        for (int i = 0; i < kids.size(); i++) {
+            if (top - head == nodes.length) {
+                growQueue();
+                mask = nodes.length - 1;
+            }
+            nodes[top & mask] = kids.get(i);
+            ints[top & mask] = depth + 1;
+            top++;
+        }
+        return t;
+    }
+
+    /**
+     * The depth, below the root of the walk, of the node last returned by next().
+     */
+    public int depth() {
+        return depth;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > nodes.length) {
+            int c = Math.max(capacity, 2 * nodes.length);
+            nodes = Arrays.copyOf(nodes, c);
+            ints = Arrays.copyOf(ints, c);
+        }
+    }
+
+    // Double the queue, which is full, keeping its length a power of two, and
+    // unwrap it so that it starts at 0.
+    private void growQueue() {
+        int n = nodes.length, mask = n - 1;
+        Tree[] newNodes = new Tree[2 * n];
+        int[] newInts = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            newNodes[i] = nodes[(head + i) & mask];
+            newInts[i] = ints[(head + i) & mask];
+        }
+        nodes = newNodes;
+        ints = newInts;
+        head = 0;
+        top = n;
+    }
+}
@@ -0,0 +1,241 @@
+package org.klortho.flextree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads trees in the same JSON format as Tree.fromJson, with Jackson's streaming
+ * parser instead of databind. The nesting is tracked with an explicit stack, so
+ * documents of any depth can be read, and each node's children are collected
+ * before its Vector is made, at the exact size. Properties other than x, y,
+ * x_size, y_size, name and children are skipped.
+ *
+ * toBinary() reads straight into primitive arrays, and writes a BinaryTree file,
+ * without making any Tree objects.
+ */
+public final class TreeReader {
+
+    private TreeReader() {}
+
+    public static Tree read(File json) throws IOException {
+        JsonParser p = Tree.json_mapper.getFactory().createParser(json);
+        try {
+            return read(p);
+        }
+        finally {
+            p.close();
+        }
+    }
+
+    public static Tree read(InputStream json) throws IOException {
+        JsonParser p = Tree.json_mapper.getFactory().createParser(json);
+        try {
+            return read(p);
+        }
+        finally {
+            p.close();
+        }
+    }
+
+    static Tree read(JsonParser p) throws IOException {
+        LayoutEvents.JsonEvent event = LayoutEvents.beginJson();
+        TreeBuilder b = new TreeBuilder();
+        walk(p, b);
+        if (event != null) LayoutEvents.endJson(event, "TreeReader.read", b.root.size());
+        return b.root;
+    }
+
+    /**
+     * Convert a JSON tree to a BinaryTree file, without making Tree objects.
+     */
+    public static void toBinary(File json, File bin) throws IOException {
+        JsonParser p = Tree.json_mapper.getFactory().createParser(json);
+        try {
+            toBinary(p, bin);
+        }
+        finally {
+            p.close();
+        }
+    }
+
+    public static void toBinary(InputStream json, File bin) throws IOException {
+        JsonParser p = Tree.json_mapper.getFactory().createParser(json);
+        try {
+            toBinary(p, bin);
+        }
+        finally {
+            p.close();
+        }
+    }
+
+    static void toBinary(JsonParser p, File bin) throws IOException {
+        LayoutEvents.JsonEvent event = LayoutEvents.beginJson();
+        ArrayBuilder b = new ArrayBuilder();
+        walk(p, b);
+        // Names can follow the children, so they're numbered afterwards, in
+        // preorder, as BinaryTree.write(Tree, File) does.
+        BinaryTree.NameTable names = new BinaryTree.NameTable();
+        int[] nameIndexes = new int[b.n];
+        for (int v = 0; v < b.n; v++) nameIndexes[v] = names.index(b.names[v]);
+        BinaryTree.write(bin, b.n, b.numKids, nameIndexes, b.ends, b.x_sizes,
+                         b.y_sizes, names.names);
+        if (event != null) LayoutEvents.endJson(event, "TreeReader.toBinary", b.n);
+    }
+
+    // What walk() does with the nodes, as it meets them. The nodes are started
+    // in preorder and ended in postorder.
+    static abstract class Builder {
+        abstract void start(int depth);
+        abstract void set(String field, double value);
+        abstract void setName(String name);
+        abstract void end(int depth);
+    }
+
+    // Read one tree object. depth is the number of objects that are open, and so
+    // is the explicit stack.
+    static void walk(JsonParser p, Builder b) throws IOException {
+        if (p.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException("Expected a tree object", p.getCurrentLocation());
+        }
+        int depth = 0;
+        b.start(0);
+        for (;;) {
+            JsonToken t = p.nextToken();
+            if (t == null) {
+                throw new JsonParseException("Unexpected end of input", p.getCurrentLocation());
+            }
+            switch (t) {
+            case FIELD_NAME:
+                String field = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                if (field.equals("children")) {
+                    if (value != JsonToken.START_ARRAY && value != JsonToken.VALUE_NULL) {
+                        throw new JsonParseException("Expected an array of children",
+                                                     p.getCurrentLocation());
+                    }
+                }
+                else if (field.equals("name")) {
+                    // As databind does, take any scalar as a string, but not an
+                    // object or array.
+                    if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                        throw new JsonParseException("Expected a string name",
+                                                     p.getCurrentLocation());
+                    }
+                    b.setName(value == JsonToken.VALUE_NULL ? null : p.getText());
+                }
+                else if (value.isNumeric() && (field.equals("x") || field.equals("y") ||
+                         field.equals("x_size") || field.equals("y_size")))
+                {
+                    b.set(field, p.getDoubleValue());
+                }
+                else {
+                    p.skipChildren();
+                }
+                break;
+            case START_OBJECT:
+                // Only children are objects.
+                b.start(++depth);
+                break;
+            case END_OBJECT:
+                b.end(depth);
+                if (depth > 0) depth--;
+                else return;
+                break;
+            case END_ARRAY:
+                break;
+            default:
+                throw new JsonParseException("Expected a child tree object",
+                                             p.getCurrentLocation());
+            }
+        }
+    }
+
+    // Makes the Tree nodes, collecting the children of the open node at each
+    // depth in a list that is reused. Each node's Children list is made once, at
+    // its end, the size of its children.
+    static final class TreeBuilder extends Builder {
+        Tree root;
+        final ArrayList<Tree> open = new ArrayList<Tree>();
+        final ArrayList<ArrayList<Tree>> kids = new ArrayList<ArrayList<Tree>>();
+
+        void start(int depth) {
+            Tree t = new Tree((Void) null);
+            if (depth == 0) root = t;
+            else kids.get(depth - 1).add(t);
+            open.add(t);
+            if (depth == kids.size()) kids.add(new ArrayList<Tree>());
+        }
+
+        void set(String field, double value) {
+            Tree t = open.get(open.size() - 1);
+            if (field.equals("x")) t.x = value;
+            else if (field.equals("y")) t.y = value;
+            else if (field.equals("x_size")) t.x_size = value;
+            else t.y_size = value;
+        }
+
+        void setName(String name) {
+            open.get(open.size() - 1).name = name;
+        }
+
+        void end(int depth) {
+            Tree t = open.remove(open.size() - 1);
+            ArrayList<Tree> k = kids.get(depth);
+            t.children = k.isEmpty() ? new Tree.Children(t, 0) : new Tree.Children(t, k);
+            k.clear();
+        }
+    }
+
+    // Fills in the fields of the BinaryTree node records, numbering the nodes in
+    // preorder as they start.
+    static final class ArrayBuilder extends Builder {
+        int n;
+        int[] numKids = new int[1024];
+        String[] names = new String[1024];
+        long[] ends = new long[1024];
+        double[] x_sizes = new double[1024], y_sizes = new double[1024];
+        int[] open = new int[64];     // The open nodes, by depth.
+        int current;
+
+        void start(int depth) {
+            int v = n++;
+            if (v == numKids.length) {
+                int c = 2 * v;
+                numKids = Arrays.copyOf(numKids, c);
+                names = Arrays.copyOf(names, c);
+                ends = Arrays.copyOf(ends, c);
+                x_sizes = Arrays.copyOf(x_sizes, c);
+                y_sizes = Arrays.copyOf(y_sizes, c);
+            }
+            if (depth == open.length) open = Arrays.copyOf(open, 2 * depth);
+            if (depth > 0) numKids[open[depth - 1]]++;
+            open[depth] = v;
+            current = v;
+            numKids[v] = 0;
+            names[v] = null;
+            x_sizes[v] = y_sizes[v] = 1.0;
+        }
+
+        void set(String field, double value) {
+            if (field.equals("x_size")) x_sizes[current] = value;
+            else if (field.equals("y_size")) y_sizes[current] = value;
+        }
+
+        void setName(String name) {
+            names[current] = name;
+        }
+
+        void end(int depth) {
+            ends[open[depth]] = n;
+            // The parent's remaining fields may follow its children.
+            if (depth > 0) current = open[depth - 1];
+        }
+    }
+}
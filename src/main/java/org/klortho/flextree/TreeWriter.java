@@ -0,0 +1,205 @@
+package org.klortho.flextree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes laid-out trees as compact JSON with Jackson's streaming generator,
+ * straight to an OutputStream or a channel, without building the document in
+ * memory. The trees are walked with an explicit stack, so trees of any depth can
+ * be written. The streams are flushed but not closed.
+ *
+ * write() gives the same nested format as Tree.toJson, without the indentation
+ * and with null names left out, which Tree.fromJson and TreeReader can read back.
+ * writeColumnar() gives one object of parallel arrays, indexed by the preorder
+ * number of the nodes, that a front end can load straight into typed arrays:
+ *
+ *   {"size": n, "parent": [...], "x": [...], "y": [...], "x_size": [...],
+ *    "y_size": [...], "name": [...]}
+ *
+ * where parent is -1 for the root. The name array is left out if no node has a
+ * name.
+ */
+public final class TreeWriter {
+
+    private TreeWriter() {}
+
+    public static void write(Tree t, OutputStream out) throws IOException {
+        JsonGenerator g = generator(out);
+        write(t, g);
+        g.close();
+    }
+
+    public static void write(Tree t, WritableByteChannel out) throws IOException {
+        write(t, Channels.newOutputStream(out));
+    }
+
+    static void write(Tree t, JsonGenerator g) throws IOException {
+        LayoutEvents.JsonEvent event = LayoutEvents.beginJson();
+        // The open nodes, and the index of the next child of each to write.
+        ArrayList<Tree> open = new ArrayList<Tree>();
+        int[] next = new int[64];
+        start(t, g);
+        open.add(t);
+        while (!open.isEmpty()) {
+            int depth = open.size() - 1;
+            Tree node = open.get(depth);
+            if (next[depth] < node.children.size()) {
+                Tree child = node.children.get(next[depth]++);
+                start(child, g);
+                if (depth + 1 == next.length) next = Arrays.copyOf(next, 2 * next.length);
+                next[depth + 1] = 0;
+                open.add(child);
+            }
+            else {
+                g.writeEndArray();
+                if (node.name != null) g.writeStringField("name", node.name);
+                g.writeEndObject();
+                open.remove(depth);
+            }
+        }
+        g.flush();
+        if (event != null) LayoutEvents.endJson(event, "TreeWriter.write", t.size());
+    }
+
+    // Write a node's fields, in the order of Tree's @JsonPropertyOrder, up to the
+    // start of its children.
+    private static void start(Tree t, JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("x", t.x);
+        g.writeNumberField("y", t.y);
+        g.writeNumberField("x_size", t.x_size);
+        g.writeNumberField("y_size", t.y_size);
+        g.writeArrayFieldStart("children");
+    }
+
+    /**
+     * Write the x, y, x_size, y_size and name of each node of a tree that has been
+     * laid out with LayoutEngine.layout().
+     */
+    public static void writeColumnar(Tree t, OutputStream out) throws IOException {
+        LayoutEvents.JsonEvent event = LayoutEvents.beginJson();
+        JsonGenerator g = generator(out);
+        int n = 0;
+        boolean named = false;
+        for (Preorder p = new Preorder(t); p.next(); n++) {
+            if (p.node.name != null) named = true;
+        }
+        g.writeStartObject();
+        g.writeNumberField("size", n);
+        g.writeArrayFieldStart("parent");
+        for (Preorder p = new Preorder(t); p.next();) g.writeNumber(p.parent);
+        g.writeEndArray();
+        g.writeArrayFieldStart("x");
+        for (Preorder p = new Preorder(t); p.next();) g.writeNumber(p.node.x);
+        g.writeEndArray();
+        g.writeArrayFieldStart("y");
+        for (Preorder p = new Preorder(t); p.next();) g.writeNumber(p.node.y);
+        g.writeEndArray();
+        g.writeArrayFieldStart("x_size");
+        for (Preorder p = new Preorder(t); p.next();) g.writeNumber(p.node.x_size);
+        g.writeEndArray();
+        g.writeArrayFieldStart("y_size");
+        for (Preorder p = new Preorder(t); p.next();) g.writeNumber(p.node.y_size);
+        g.writeEndArray();
+        if (named) {
+            g.writeArrayFieldStart("name");
+            for (Preorder p = new Preorder(t); p.next();) g.writeString(p.node.name);
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+        g.close();
+        if (event != null) LayoutEvents.endJson(event, "TreeWriter.writeColumnar", n);
+    }
+
+    public static void writeColumnar(Tree t, WritableByteChannel out) throws IOException {
+        writeColumnar(t, Channels.newOutputStream(out));
+    }
+
+    /**
+     * Write a LayoutResult, with the names of its Tree nodes.
+     */
+    public static void writeColumnar(LayoutResult r, OutputStream out) throws IOException {
+        LayoutEvents.JsonEvent event = LayoutEvents.beginJson();
+        JsonGenerator g = generator(out);
+        int n = r.size();
+        boolean named = false;
+        for (int i = 0; i < n && !named; i++) named = r.node(i).name != null;
+        g.writeStartObject();
+        g.writeNumberField("size", n);
+        g.writeArrayFieldStart("parent");
+        for (int i = 0; i < n; i++) g.writeNumber(r.parent(i));
+        g.writeEndArray();
+        g.writeArrayFieldStart("x");
+        for (int i = 0; i < n; i++) g.writeNumber(r.x(i));
+        g.writeEndArray();
+        g.writeArrayFieldStart("y");
+        for (int i = 0; i < n; i++) g.writeNumber(r.y(i));
+        g.writeEndArray();
+        g.writeArrayFieldStart("x_size");
+        for (int i = 0; i < n; i++) g.writeNumber(r.x_size(i));
+        g.writeEndArray();
+        g.writeArrayFieldStart("y_size");
+        for (int i = 0; i < n; i++) g.writeNumber(r.y_size(i));
+        g.writeEndArray();
+        if (named) {
+            g.writeArrayFieldStart("name");
+            for (int i = 0; i < n; i++) g.writeString(r.node(i).name);
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+        g.close();
+        if (event != null) LayoutEvents.endJson(event, "TreeWriter.writeColumnar", n);
+    }
+
+    public static void writeColumnar(LayoutResult r, WritableByteChannel out)
+        throws IOException
+    {
+        writeColumnar(r, Channels.newOutputStream(out));
+    }
+
+    private static JsonGenerator generator(OutputStream out) throws IOException {
+        JsonGenerator g = Tree.json_mapper.getFactory().createGenerator(out);
+        g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return g;
+    }
+
+    // Steps through the nodes in preorder, with the preorder number of each one's
+    // parent.
+    private static final class Preorder {
+        private final ArrayList<Tree> toVisit = new ArrayList<Tree>();
+        private int[] toVisitParents = new int[64];
+        private int count;
+        Tree node;
+        int parent;
+
+        Preorder(Tree t) {
+            toVisit.add(t);
+            toVisitParents[0] = -1;
+        }
+
+        boolean next() {
+            int top = toVisit.size() - 1;
+            if (top < 0) return false;
+            node = toVisit.remove(top);
+            parent = toVisitParents[top];
+            int v = count++;
+            int k = node.children.size();
+            if (top + k > toVisitParents.length) {
+                toVisitParents = Arrays.copyOf(toVisitParents,
+                                               Math.max(2 * toVisitParents.length, top + k));
+            }
+            for (int i = k - 1; i >= 0; i--) {
+                toVisitParents[toVisit.size()] = v;
+                toVisit.add(node.children.get(i));
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.klortho.flextree;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compare the WrappedTree layout path with the ArrayLayout path. For each tree size,
+ * this warms up each engine on the same random tree, then lays it out NUM_TESTS 
+ * times, and prints the median time per node and the number of bytes allocated per 
+ * node by one layout.
+ */
+public class ArrayLayoutCheck {
+
+    public static int[] SIZES = {1000, 10000, 100000, 1000000};
+    public static int WARMUP_NODES = 5000000;
+    public static int NUM_TESTS = 21;
+    public static long SEED = 42;
+
+    static com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] argv) {
+        LayoutEngine wrapped = LayoutEngine.builder()
+                .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .build();
+        LayoutEngine arrays = LayoutEngine.builder()
+                .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .setUseArrays(true)
+                .build();
+
+        System.out.println("nodes path ns/node bytes/node");
+        for (int numNodes : SIZES) {
+            Tree t = RandomTreeGenerator.makeTree(numNodes, 1, 10, 1, 10, SEED);
+            runTests("wrapped", wrapped, t, numNodes);
+            runTests("arrays", arrays, t, numNodes);
+        }
+    }
+
+    static void runTests(String name, LayoutEngine engine, Tree t, int numNodes) {
+        long[] times = new long[NUM_TESTS];
+        long bytes = 0;
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_NODES / numNodes + 5; i++) {
+            engine.layout(t);
+        }
+        for (int i = 0; i < NUM_TESTS; i++) {
+            long startBytes = threadBean.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            engine.layout(t);
+            times[i] = System.nanoTime() - start;
+            bytes = threadBean.getThreadAllocatedBytes(thread) - startBytes;
+        }
+        java.util.Arrays.sort(times);
+        System.out.printf("%d %s %.1f %.1f\n", numNodes, name,
+            (double) times[NUM_TESTS / 2] / numNodes, (double) bytes / numNodes);
+    }
+}
@@ -0,0 +1,198 @@
+package org.klortho.flextree;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * Check that the layout does a linear amount of work, by counting it with
+ * LayoutStats, rather than by timing it. For each shape, at each size, this lays
+ * out a tree and prints the contour steps of separate() and the IYL pops per node.
+ * It fails if either is over its bound at any size, or grows with the size of the
+ * tree, as it would if something made the algorithm super-linear.
+ *
+ * The shapes are those that are hard on the contours: long chains threaded onto
+ * short ones (staircase), deep siblings walked along their whole length (comb),
+ * wide fans and caterpillars, complete and random trees. The nodes have random
+ * heights, so that bottom() rarely ties, except in one random tree that has them
+ * all the same; and one random tree is spaced by a TreeRelation that isn't a
+ * RelationSpec, laid out in the WrappedTree path.
+ *
+ * The sizes are given by the system property flextree.complexity.sizes, a list
+ * separated by commas. The default goes up to 10M nodes, which needs a heap of
+ * about 4 GB (-Xmx4g). Trees that are made of Tree nodes stop at TREE_LIMIT.
+ */
+public class ComplexityCheck {
+
+    public static String SIZES = "1000,10000,100000,1000000,10000000";
+    public static int TREE_LIMIT = 1000000;
+
+    // Every node is passed on the walk down a contour at most once before it's
+    // hidden, on each side, and every sibling is pushed on an IYL list once.
+    public static double MAX_STEPS_PER_NODE = 2;
+    public static double MAX_POPS_PER_NODE = 1;
+
+    // How much the work per node may grow from the smallest size to the largest,
+    // per factor of 10, allowing for shapes whose constant settles as they grow.
+    public static double GROWTH_PER_DECADE = 0.1;
+
+    public static void main(String[] argv) {
+        int[] sizes = sizes(System.getProperty("flextree.complexity.sizes", SIZES));
+        ArrayList<String> failures = check(sizes, System.out);
+        for (String f : failures) System.out.println("FAILED: " + f);
+        if (!failures.isEmpty()) System.exit(1);
+    }
+
+    static int[] sizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) sizes[i] = Integer.parseInt(parts[i].trim());
+        return sizes;
+    }
+
+    // One shape of tree, and how it's laid out.
+    static abstract class Shape {
+        final String name;
+        Shape(String name) {
+            this.name = name;
+        }
+        abstract ShapeTreeGenerator generator(int n);
+        // Whether it's laid out as a Tree, with a TreeRelation spacing.
+        boolean tree() {
+            return false;
+        }
+    }
+
+    static ShapeTreeGenerator sized(ShapeTreeGenerator g) {
+        return g.setNodeSizes(1, 10, 1, 10);
+    }
+
+    static Shape[] shapes() {
+        return new Shape[] {
+            new Shape("chain") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.chain(n));
+                }
+            },
+            new Shape("fan") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.fan(n));
+                }
+            },
+            new Shape("binary") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.kAry(n, 2));
+                }
+            },
+            new Shape("caterpillar") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.caterpillar(n, 3));
+                }
+            },
+            new Shape("comb") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.comb(n, (int) Math.sqrt(n)));
+                }
+            },
+            new Shape("staircase") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.staircase(n));
+                }
+            },
+            new Shape("random") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.galtonWatson(n));
+                }
+            },
+            new Shape("random-even") {
+                ShapeTreeGenerator generator(int n) {
+                    return ShapeTreeGenerator.galtonWatson(n).setNodeSizes(1, 10, 1, 1);
+                }
+            },
+            new Shape("random-relation") {
+                ShapeTreeGenerator generator(int n) {
+                    return sized(ShapeTreeGenerator.galtonWatson(n));
+                }
+                boolean tree() {
+                    return true;
+                }
+            },
+        };
+    }
+
+    /**
+     * Lay out each shape at each size, print the work per node, and return what
+     * failed.
+     */
+    static ArrayList<String> check(int[] sizes, PrintStream out) {
+        final LayoutStats[] last = new LayoutStats[1];
+        LayoutListener listener = new LayoutListener() {
+            public void layoutDone(LayoutStats stats) {
+                last[0] = stats;
+            }
+        };
+        LayoutEngine compactEngine = LayoutEngine.builder()
+            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+            .setSpacing(LayoutEngine.spacing0)
+            .setLayoutListener(listener)
+            .build();
+        LayoutEngine treeEngine = LayoutEngine.builder()
+            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+            .setSpacing(new LayoutEngine.TreeRelation() {
+                public double s(Tree a, Tree b) {
+                    return a.parent == b.parent ? 0 : a.x_size / 4;
+                }
+            })
+            .setLayoutListener(listener)
+            .build();
+        LayoutWorkspace workspace = new LayoutWorkspace();
+
+        ArrayList<String> failures = new ArrayList<String>();
+        out.println("shape nodes steps/node pops/node ms");
+        for (Shape shape : shapes()) {
+            double firstSteps = -1, firstPops = -1;
+            int first = 0;
+            for (int n : sizes) {
+                if (shape.tree() && n > TREE_LIMIT) continue;
+                // Make the tree first, so that only the layout is timed.
+                ShapeTreeGenerator g = shape.generator(n);
+                Tree tree = shape.tree() ? g.makeTree() : null;
+                CompactTree compact = shape.tree() ? null : g.makeCompactTree();
+                long start = System.nanoTime();
+                if (tree != null) treeEngine.layout(tree);
+                else compactEngine.layout(compact, workspace);
+                long ms = (System.nanoTime() - start) / 1000000;
+                // Let the tree go before the next, bigger one is made.
+                tree = null;
+                compact = null;
+                LayoutStats stats = last[0];
+                double steps = (double) stats.contourSteps() / n,
+                       pops = (double) stats.iylPops() / n;
+                out.printf("%s %d %.4f %.4f %d\n", shape.name, n, steps, pops, ms);
+
+                String at = shape.name + " at " + n + " nodes: ";
+                if (steps > MAX_STEPS_PER_NODE) {
+                    failures.add(at + steps + " contour steps per node");
+                }
+                if (pops > MAX_POPS_PER_NODE) {
+                    failures.add(at + pops + " IYL pops per node");
+                }
+                if (firstSteps < 0) {
+                    firstSteps = steps;
+                    firstPops = pops;
+                    first = n;
+                    continue;
+                }
+                double allowed = 1 + GROWTH_PER_DECADE * Math.log10((double) n / first);
+                if (steps > firstSteps * allowed + 0.01) {
+                    failures.add(at + "contour steps per node grew from " + firstSteps +
+                                 " at " + first + " nodes to " + steps);
+                }
+                if (pops > firstPops * allowed + 0.01) {
+                    failures.add(at + "IYL pops per node grew from " + firstPops +
+                                 " at " + first + " nodes to " + pops);
+                }
+            }
+        }
+        return failures;
+    }
+}
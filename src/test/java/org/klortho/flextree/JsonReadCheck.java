@@ -0,0 +1,58 @@
+package org.klortho.flextree;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Compare the time to read a JSON tree of NUM_NODES nodes with Tree.fromJson
+ * (databind), TreeReader.read, and TreeReader.toBinary, which doesn't make Tree
+ * objects. Prints the median of NUM_TESTS reads for each.
+ */
+public class JsonReadCheck {
+
+    public static int NUM_NODES = 1000000;
+    public static int NUM_TESTS = 5;
+    public static long SEED = 42;
+
+    public static void main(String[] argv) throws Exception {
+        File json = File.createTempFile("flextree", ".json");
+        File bin = File.createTempFile("flextree", ".bin");
+        try {
+            Tree t = RandomTreeGenerator.makeTree(NUM_NODES, 1, 10, 1, 10, SEED);
+            PrintStream out = new PrintStream(json, "UTF-8");
+            out.print(t.toJson());
+            out.close();
+            System.out.printf("%d nodes, %.1f MB of JSON\n", NUM_NODES, json.length() / 1e6);
+
+            long[] databind = new long[NUM_TESTS], reader = new long[NUM_TESTS],
+                   toBinary = new long[NUM_TESTS];
+            for (int i = 0; i < NUM_TESTS; i++) {
+                long start = System.nanoTime();
+                Tree.fromJson(json);
+                databind[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                TreeReader.read(json);
+                reader[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                TreeReader.toBinary(json, bin);
+                toBinary[i] = System.nanoTime() - start;
+            }
+            System.out.println("reader ms");
+            System.out.printf("Tree.fromJson %.1f\n", median(databind));
+            System.out.printf("TreeReader.read %.1f\n", median(reader));
+            System.out.printf("TreeReader.toBinary %.1f\n", median(toBinary));
+        }
+        finally {
+            json.delete();
+            bin.delete();
+        }
+    }
+
+    static double median(long[] times) {
+        Arrays.sort(times);
+        return times[times.length / 2] / 1e6;
+    }
+}
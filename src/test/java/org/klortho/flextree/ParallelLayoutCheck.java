@@ -0,0 +1,51 @@
+package org.klortho.flextree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Test how the parallel firstWalk scales with the number of threads. This lays out
+ * one random tree of NUM_NODES nodes without a pool, and then with pools of 1 up to
+ * the number of available processors, and prints the median time of NUM_TESTS 
+ * layouts for each. Only firstWalk runs in parallel.
+ */
+public class ParallelLayoutCheck {
+
+    public static int NUM_NODES = 2000000;
+    public static int NUM_TESTS = 11;
+    public static long SEED = 42;
+
+    public static void main(String[] argv) {
+        Tree t = RandomTreeGenerator.makeTree(NUM_NODES, 1, 10, 1, 10, SEED);
+        LayoutWorkspace workspace = new LayoutWorkspace();
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("threads ms speedup");
+        double sequential = timeLayouts(LayoutEngine.builder()
+                .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .build(), t, workspace);
+        System.out.printf("sequential %.1f 1.00\n", sequential);
+
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            double ms = timeLayouts(LayoutEngine.builder()
+                    .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                    .setForkJoinPool(pool)
+                    .build(), t, workspace);
+            System.out.printf("%d %.1f %.2f\n", threads, ms, sequential / ms);
+            pool.shutdown();
+        }
+    }
+
+    static double timeLayouts(LayoutEngine engine, Tree t, LayoutWorkspace workspace) {
+        engine.layout(t, workspace);
+        long[] times = new long[NUM_TESTS];
+        for (int i = 0; i < NUM_TESTS; i++) {
+            long start = System.nanoTime();
+            engine.layout(t, workspace);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[NUM_TESTS / 2] / 1e6;
+    }
+}
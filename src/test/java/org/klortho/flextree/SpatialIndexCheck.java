@@ -0,0 +1,70 @@
+package org.klortho.flextree;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Time building a SpatialIndex over the layout of a random tree of NUM_NODES 
+ * nodes, with and without a pool, and compare the time of NUM_QUERIES viewport
+ * searches and hit tests with that of looking at every node.
+ */
+public class SpatialIndexCheck {
+
+    public static int NUM_NODES = 2000000;
+    public static int NUM_QUERIES = 1000;
+    public static long SEED = 42;
+
+    public static void main(String[] argv) {
+        Tree t = RandomTreeGenerator.makeTree(NUM_NODES, 1, 10, 1, 10, SEED);
+        LayoutResult r = LayoutEngine.builder()
+            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+            .build().layoutResult(t);
+        ForkJoinPool pool = new ForkJoinPool();
+
+        SpatialIndex index = null;
+        for (ForkJoinPool p : new ForkJoinPool[] { null, pool }) {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                index = SpatialIndex.build(r, p);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("build, %s: %.1f ms\n", 
+                p == null ? "sequential" : p.getParallelism() + " threads", best / 1e6);
+        }
+        pool.shutdown();
+
+        // Viewports of a hundredth of the width and height of the layout.
+        BoundingBox bb = r.bounds().overall();
+        double w = bb.x_size() / 100, h = bb.y_size() / 100;
+        Random rand = new Random(SEED);
+        double[] qx = new double[NUM_QUERIES], qy = new double[NUM_QUERIES];
+        for (int q = 0; q < NUM_QUERIES; q++) {
+            qx[q] = bb.min_x() + rand.nextDouble() * (bb.x_size() - w);
+            qy[q] = bb.min_y() + rand.nextDouble() * (bb.y_size() - h);
+        }
+
+        long found = 0, hits = 0, start = System.nanoTime();
+        for (int q = 0; q < NUM_QUERIES; q++) {
+            found += index.search(qx[q], qy[q], qx[q] + w, qy[q] + h).length;
+            hits += index.nodeAt(qx[q], qy[q]) >= 0 ? 1 : 0;
+        }
+        double indexed = (System.nanoTime() - start) / 1e3 / NUM_QUERIES;
+
+        long scanned = 0;
+        start = System.nanoTime();
+        for (int q = 0; q < NUM_QUERIES; q++) {
+            for (int i = 0; i < r.size(); i++) {
+                if (r.x(i) - r.x_size(i) / 2 <= qx[q] + w && r.x(i) + r.x_size(i) / 2 >= qx[q] &&
+                    r.y(i) <= qy[q] + h && r.y(i) + r.y_size(i) >= qy[q]) 
+                {
+                    scanned++;
+                }
+            }
+        }
+        double scan = (System.nanoTime() - start) / 1e3 / NUM_QUERIES;
+        System.out.printf("search and hit test, index: %.1f us (%d nodes found, %d hits)\n",
+                          indexed, found, hits);
+        System.out.printf("search, scan: %.1f us (%d nodes found)\n", scan, scanned);
+    }
+}
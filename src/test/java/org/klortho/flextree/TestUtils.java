@@ -3,6 +3,7 @@ package org.klortho.flextree;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.List;
 
 public class TestUtils {
 
@@ -22,19 +23,33 @@ public class TestUtils {
      * about it is written to the PrintStream.
      */
     public static boolean hasOverlappingNodes(Tree t, PrintStream ps) {
+        List<OverlapValidator.Overlap> overlaps = OverlapValidator.find(t, 1);
+        if (overlaps.isEmpty()) return false;
+        ArrayList<Tree> nodes = t.allNodes();
+        int i = overlaps.get(0).b, j = overlaps.get(0).a;
+        ps.printf("Nodes %d and %d overlap!\n", i, j);
+        printNode(ps, nodes, i);
+        printNode(ps, nodes, j);
+        return true;
+    }
+
+    /**
+     * Every pair of overlapping nodes, by preorder number, found by comparing each
+     * pair, as this used to do. OverlapValidator is tested against this, so it's 
+     * kept, but only use it on small trees.
+     */
+    public static List<OverlapValidator.Overlap> overlappingNodesPairwise(Tree t) {
         BoundingBox bb = new BoundingBox(t);
         ArrayList<Tree> nodes = t.allNodes();
+        List<OverlapValidator.Overlap> overlaps = new ArrayList<OverlapValidator.Overlap>();
         for (int i = 0 ; i < nodes.size(); i++) {
             for (int j = 0 ; j < i ; j++) {
                 if (nodeOverlaps(bb, nodes.get(i), nodes.get(j))) {
-                    ps.printf("Nodes %d and %d overlap!\n", i, j);
-                    printNode(ps, nodes, i);
-                    printNode(ps, nodes, j);
-                    return true;
+                    overlaps.add(new OverlapValidator.Overlap(i, j));
                 }
             }
         }
-        return false;
+        return overlaps;
     }
 
     private static boolean nodeOverlaps(BoundingBox bb, Tree a, Tree b) {
@@ -0,0 +1,39 @@
+package org.klortho.flextree;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts trees between the JSON format of the test cases and the binary format
+ * of BinaryTree:
+ *
+ *   TreeConverter json2bin <tree.json> <tree.bin>
+ *   TreeConverter bin2json <tree.bin> [<layout.bin>] <tree.json>
+ *
+ * When a layout output file is given, x and y in the JSON come from it.
+ */
+public class TreeConverter {
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 3 && args[0].equals("json2bin")) {
+                BinaryTree.fromJson(new File(args[1]), new File(args[2]));
+            }
+            else if (args.length == 3 && args[0].equals("bin2json")) {
+                BinaryTree.toJson(new File(args[1]), null, new File(args[2]));
+            }
+            else if (args.length == 4 && args[0].equals("bin2json")) {
+                BinaryTree.toJson(new File(args[1]), new File(args[2]), new File(args[3]));
+            }
+            else {
+                System.err.println("Usage: TreeConverter json2bin <tree.json> <tree.bin>\n" +
+                    "       TreeConverter bin2json <tree.bin> [<layout.bin>] <tree.json>");
+                System.exit(1);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -76,6 +76,26 @@ public class UnitTests extends TestCase {
         }
     }
 
+    /**
+     * Once the workspace is warmed up, laying out t again allocates next to nothing.
+     * This is skipped on JVMs that can't count the bytes a thread allocates.
+     */
+    public static void assertLayoutDoesNotAllocate(LayoutEngine engine, Tree t,
+                                                   LayoutWorkspace workspace) {
+        java.lang.management.ThreadMXBean bean = 
+            java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+        engine.layout(t, workspace);
+        long before = threadBean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10; i++) {
+            engine.layout(t, workspace);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(thread) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+
     /**
      * Test the sample tree
      */
@@ -94,6 +114,1565 @@ public class UnitTests extends TestCase {
         layoutAndCheckTree(t);
     }
     
+    /**
+     * Lay out a single chain of a million nodes, which would overflow the default
+     * thread stack if any of the walks were recursive.
+     */
+    public void testDeepChain()
+    {
+        int n = 1000000;
+        Tree root = new Tree(2, 1);
+        Tree node = root;
+        for (int i = 1; i < n; i++) {
+            Tree kid = new Tree(2, 1);
+            node.children.add(kid);
+            node = kid;
+        }
+        for (boolean useArrays : new boolean[] {false, true}) {
+            LayoutEngine engine = LayoutEngine.builder()
+                                      .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                      .setUseArrays(useArrays)
+                                      .build();
+            engine.layout(root);
+    
+            node = root;
+            for (int i = 0; i < n; i++) {
+                assertEquals(0.0, node.x);
+                assertEquals((double) i, node.y);
+                assertEquals(i, node.depth);
+                node = node.hasChildren() ? node.children.get(0) : null;
+            }
+            assertNull(node);
+        }
+    }
+
+    /**
+     * The ArrayLayout path must give exactly the same results as the WrappedTree
+     * path, for every kind of sizing and gap.
+     */
+    public void testArrayLayout()
+    {
+        LayoutEngine.Builder[] builders = {
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree),
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                  .setSpacing(LayoutEngine.spacing0),
+            LayoutEngine.builder().setNodeSizeFixed(new double[] {50, 50}),
+            LayoutEngine.builder().setSize(new double[] {200, 100}),
+        };
+        for (LayoutEngine.Builder b : builders) {
+            for (int seed = 0; seed < 10; seed++) {
+                Tree expected = RandomTreeGenerator.makeTree(500, 10, 100, 10, 100, seed);
+                Tree actual = RandomTreeGenerator.makeTree(500, 10, 100, 10, 100, seed);
+                b.setSetNodeSizes(true).setUseArrays(false).build().layout(expected);
+                b.setUseArrays(true).build().layout(actual);
+
+                StringPrintStream out = new StringPrintStream();
+                assertTrue(out.toString(), actual.deepEquals(expected, out.ps));
+            }
+        }
+    }
+    
+    /**
+     * One workspace, reused for trees of different sizes, gives the same results as
+     * the WrappedTree path, and once it has grown, layouts don't allocate.
+     */
+    public void testLayoutWorkspace()
+    {
+        LayoutWorkspace workspace = new LayoutWorkspace();
+        LayoutEngine engine = LayoutEngine.builder()
+                                  .setNodeSizeFixed(new double[] {5, 10})
+                                  .setSpacing(LayoutEngine.spacing0)
+                                  .build();
+        for (int numNodes : new int[] {2000, 50, 1, 2000, 700}) {
+            Tree expected = RandomTreeGenerator.makeTree(numNodes, 10, 100, 10, 100, numNodes);
+            Tree actual = RandomTreeGenerator.makeTree(numNodes, 10, 100, 10, 100, numNodes);
+            engine.layout(expected);
+            engine.layout(actual, workspace);
+            StringPrintStream out = new StringPrintStream();
+            assertTrue(out.toString(), actual.deepEquals(expected, out.ps));
+        }
+        assertTrue(workspace.capacity() >= 2000);
+        assertTrue(workspace.retainedBytes() >= 2000L * 8);
+
+        assertLayoutDoesNotAllocate(engine,
+            RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, 1), workspace);
+
+        workspace.trim();
+        assertEquals(0, workspace.capacity());
+    }
+
+    /**
+     * A PrimitiveNodeSizeFunction gives the same layout as the equivalent 
+     * NodeSizeFunction, and nodeSizeFromTree doesn't allocate per node.
+     */
+    public void testPrimitiveNodeSizeFunction()
+    {
+        LayoutEngine.NodeSizeFunction boxed = new LayoutEngine.NodeSizeFunction() {
+            public double[] ns(Tree t) {
+                return new double[] {t.x_size * 2, t.y_size + 1};
+            }
+        };
+        LayoutEngine.PrimitiveNodeSizeFunction primitive = 
+            new LayoutEngine.PrimitiveNodeSizeFunction() {
+                public double xSize(Tree t) {
+                    return t.x_size * 2;
+                }
+                public double ySize(Tree t) {
+                    return t.y_size + 1;
+                }
+            };
+        for (boolean useArrays : new boolean[] {false, true}) {
+            LayoutEngine expectedEngine = LayoutEngine.builder()
+                                              .setNodeSizeFunction(boxed)
+                                              .setUseArrays(useArrays)
+                                              .build();
+            LayoutEngine actualEngine = LayoutEngine.builder()
+                                            .setPrimitiveNodeSizeFunction(primitive)
+                                            .setUseArrays(useArrays)
+                                            .build();
+            Tree expected = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, 3);
+            Tree actual = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, 3);
+            expectedEngine.layout(expected);
+            actualEngine.layout(actual);
+            StringPrintStream out = new StringPrintStream();
+            assertTrue(out.toString(), actual.deepEquals(expected, out.ps));
+        }
+
+        LayoutEngine engine = LayoutEngine.builder()
+                                  .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                  .setSpacing(LayoutEngine.spacing0)
+                                  .build();
+        assertLayoutDoesNotAllocate(engine,
+            RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, 1), new LayoutWorkspace());
+    }
+
+    /**
+     * Each RelationSpec gives the same layout as the equivalent TreeRelation, as
+     * separation and as spacing.
+     */
+    public void testRelationSpec()
+    {
+        final double[] table = {3, 2, 1.5};
+        LayoutEngine.TreeRelation[] specs = {
+            LayoutEngine.RelationSpec.constant(1.5),
+            LayoutEngine.RelationSpec.siblings(0.5, 3),
+            LayoutEngine.RelationSpec.byDepth(table),
+        };
+        LayoutEngine.TreeRelation[] relations = {
+            new LayoutEngine.TreeRelation() {
+                public double s(Tree a, Tree b) {
+                    return 1.5;
+                }
+            },
+            new LayoutEngine.TreeRelation() {
+                public double s(Tree a, Tree b) {
+                    return a.parent == b.parent ? 0.5 : 3;
+                }
+            },
+            new LayoutEngine.TreeRelation() {
+                public double s(Tree a, Tree b) {
+                    return table[Math.min(Math.max(a.depth, b.depth), table.length - 1)];
+                }
+            },
+        };
+        for (int i = 0; i < specs.length; i++) {
+            for (boolean useArrays : new boolean[] {false, true}) {
+                for (boolean spacing : new boolean[] {false, true}) {
+                    LayoutEngine.Builder expected = LayoutEngine.builder()
+                        .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                        .setUseArrays(useArrays);
+                    LayoutEngine.Builder actual = LayoutEngine.builder()
+                        .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                        .setUseArrays(useArrays);
+                    if (spacing) {
+                        expected.setSpacing(relations[i]);
+                        actual.setSpacing(specs[i]);
+                    }
+                    else {
+                        expected.setSeparation(relations[i]);
+                        actual.setSeparation(specs[i]);
+                    }
+                    Tree e = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, i);
+                    Tree a = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, i);
+                    expected.build().layout(e);
+                    actual.build().layout(a);
+                    StringPrintStream out = new StringPrintStream();
+                    assertTrue(out.toString(), a.deepEquals(e, out.ps));
+                }
+            }
+        }
+    }
+
+    // The nodes of the tree in preorder.
+    static ArrayList<Tree> preorder(Tree t) {
+        ArrayList<Tree> nodes = new ArrayList<Tree>();
+        java.util.ArrayDeque<Tree> toVisit = new java.util.ArrayDeque<Tree>();
+        toVisit.push(t);
+        while (!toVisit.isEmpty()) {
+            Tree node = toVisit.pop();
+            nodes.add(node);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                toVisit.push(node.children.get(i));
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * layoutResult() leaves the tree alone, and returns the same layout that 
+     * layout() sets on the nodes.
+     */
+    public void testLayoutResult()
+    {
+        LayoutEngine.Builder[] builders = {
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree),
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                  .setSpacing(LayoutEngine.spacing0),
+            LayoutEngine.builder().setSize(new double[] {200, 100}),
+        };
+        LayoutResultHolder holder = new LayoutResultHolder();
+        assertNull(holder.get());
+        for (LayoutEngine.Builder b : builders) {
+            LayoutEngine engine = b.setSetNodeSizes(true).build();
+            Tree t = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, 5);
+            Tree expected = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, 5);
+            ArrayList<Tree> nodes = preorder(t);
+            double[] before = new double[4 * nodes.size()];
+            for (int i = 0; i < nodes.size(); i++) {
+                Tree node = nodes.get(i);
+                before[4 * i] = node.x;
+                before[4 * i + 1] = node.y;
+                before[4 * i + 2] = node.x_size;
+                before[4 * i + 3] = node.y_size;
+                assertNull(node.parent);
+            }
+
+            LayoutResult result = holder.update(engine, t);
+            assertSame(result, holder.get());
+            for (int i = 0; i < nodes.size(); i++) {
+                Tree node = nodes.get(i);
+                assertEquals(before[4 * i], node.x);
+                assertEquals(before[4 * i + 1], node.y);
+                assertEquals(before[4 * i + 2], node.x_size);
+                assertEquals(before[4 * i + 3], node.y_size);
+                assertNull(node.parent);
+            }
+
+            engine.layout(expected);
+            ArrayList<Tree> expectedNodes = preorder(expected);
+            assertEquals(expectedNodes.size(), result.size());
+            for (int i = 0; i < result.size(); i++) {
+                Tree e = expectedNodes.get(i);
+                assertSame(nodes.get(i), result.node(i));
+                assertEquals(e.x, result.x(i));
+                assertEquals(e.y, result.y(i));
+                assertEquals(e.x_size, result.x_size(i));
+                assertEquals(e.y_size, result.y_size(i));
+                assertEquals(e.depth, result.depth(i));
+                assertEquals(e.parent == null ? -1 : expectedNodes.indexOf(e.parent), 
+                             result.parent(i));
+            }
+            result.apply();
+            StringPrintStream out = new StringPrintStream();
+            assertTrue(out.toString(), t.deepEquals(expected, out.ps));
+        }
+    }
+
+    /**
+     * The streaming layout gives the same results as layout(), for random trees 
+     * and for a chain that's too deep to walk recursively.
+     */
+    public void testStreamingLayout() throws IOException
+    {
+        java.io.File work = java.io.File.createTempFile("flextree", ".work");
+        java.io.File out = java.io.File.createTempFile("flextree", ".out");
+        try {
+            Tree chain = new Tree(2, 1);
+            Tree node = chain;
+            for (int i = 1; i < 200000; i++) {
+                Tree kid = new Tree(2, 1);
+                node.children.add(kid);
+                node = kid;
+            }
+            Tree[] trees = {
+                new Tree(3, 2),
+                chain,
+                RandomTreeGenerator.makeTree(1000, 1, 10, 1, 10, 1),
+                RandomTreeGenerator.makeTree(3000, 10, 100, 10, 100, 2),
+                RandomTreeGenerator.makeTree(3000, 1, 3, 1, 3, 3),
+            };
+            LayoutEngine.Builder[] builders = {
+                LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree),
+                LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                      .setSpacing(LayoutEngine.spacing0),
+                LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                      .setSeparation(LayoutEngine.RelationSpec.constant(1)),
+            };
+            for (LayoutEngine.Builder b : builders) {
+                LayoutEngine engine = b.build();
+                StreamingLayout streaming = new StreamingLayout(engine);
+                for (Tree t : trees) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    StreamingLayout.writeNodes(t, new java.io.DataOutputStream(bytes));
+                    streaming.layout(new java.io.DataInputStream(
+                        new java.io.ByteArrayInputStream(bytes.toByteArray())), work, out);
+
+                    engine.layout(t);
+                    ArrayList<Tree> nodes = preorder(t);
+                    double[] expected = new double[2 * nodes.size()];
+                    for (int i = 0; i < nodes.size(); i++) {
+                        expected[2 * i] = nodes.get(i).x;
+                        expected[2 * i + 1] = nodes.get(i).y;
+                        nodes.get(i).x = nodes.get(i).y = Double.NaN;
+                    }
+                    StreamingLayout.readResults(out, t);
+                    for (int i = 0; i < nodes.size(); i++) {
+                        assertEquals(expected[2 * i], nodes.get(i).x);
+                        assertEquals(expected[2 * i + 1], nodes.get(i).y);
+                    }
+                }
+            }
+
+            try {
+                new StreamingLayout(LayoutEngine.builder()
+                    .setSpacing(LayoutEngine.RelationSpec.byDepth(new double[] {1})).build());
+                fail("a depth table should not be accepted");
+            }
+            catch (IllegalArgumentException e) {}
+        }
+        finally {
+            work.delete();
+            out.delete();
+        }
+    }
+
+    /**
+     * A tree survives the trip through JSON and the binary format, and the layout 
+     * of the binary file is the same as that of the Tree.
+     */
+    public void testBinaryTree() throws IOException
+    {
+        java.io.File json = java.io.File.createTempFile("flextree", ".json");
+        java.io.File bin = java.io.File.createTempFile("flextree", ".bin");
+        java.io.File out = java.io.File.createTempFile("flextree", ".out");
+        try {
+            Tree t = RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, 8);
+            int i = 0;
+            for (Tree node : preorder(t)) {
+                if (i++ % 3 != 0) node.name = "node " + (i % 100);
+            }
+            PrintStream ps = new PrintStream(json);
+            ps.print(t.toJson());
+            ps.close();
+            BinaryTree.fromJson(json, bin);
+
+            LayoutEngine.Builder[] builders = {
+                LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree),
+                LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                    .setSpacing(LayoutEngine.RelationSpec.byDepth(new double[] {5, 2, 0})),
+                LayoutEngine.builder().setSize(new double[] {200, 100}),
+            };
+            for (LayoutEngine.Builder b : builders) {
+                LayoutEngine engine = b.build();
+                BinaryTree bt = BinaryTree.open(bin);
+                try {
+                    assertEquals(2000, bt.size());
+                    engine.layout(bt, out);
+                    Tree copy = bt.toTree();
+                    ArrayList<Tree> nodes = preorder(t), copies = preorder(copy);
+                    for (int v = 0; v < nodes.size(); v++) {
+                        assertEquals(nodes.get(v).name, copies.get(v).name);
+                        assertEquals(nodes.get(v).x_size, copies.get(v).x_size);
+                        assertEquals(nodes.get(v).y_size, copies.get(v).y_size);
+                    }
+                    BinaryTree.readLayout(out, copy);
+                    engine.layout(t);
+                    StringPrintStream sps = new StringPrintStream();
+                    assertTrue(sps.toString(), copy.deepEquals(t, sps.ps));
+                }
+                finally {
+                    bt.close();
+                }
+            }
+
+            BinaryTree.toJson(bin, out, json);
+            Tree back = Tree.fromJson(json);
+            StringPrintStream sps = new StringPrintStream();
+            assertTrue(sps.toString(), back.deepEquals(t, sps.ps));
+
+            // A file with no records is refused before the output is made.
+            java.io.DataOutputStream data =
+                new java.io.DataOutputStream(new java.io.FileOutputStream(bin));
+            data.writeInt(BinaryTree.MAGIC);
+            data.writeInt(BinaryTree.VERSION);
+            data.writeLong(0);
+            data.write(new byte[BinaryTree.HEADER_SIZE - 16]);
+            data.close();
+            out.delete();
+            BinaryTree empty = BinaryTree.open(bin);
+            try {
+                assertEquals(0, empty.size());
+                LayoutEngine.builder().build().layout(empty, out);
+                fail("laid out an empty tree");
+            }
+            catch (IllegalArgumentException e) {
+                assertEquals("empty tree", e.getMessage());
+                assertFalse(out.exists());
+            }
+            finally {
+                empty.close();
+            }
+        }
+        finally {
+            json.delete();
+            bin.delete();
+            out.delete();
+        }
+    }
+
+    /**
+     * TreeReader reads the same trees as Tree.fromJson, including documents too
+     * deep for databind, and toBinary() writes the same file as BinaryTree.write.
+     */
+    public void testTreeReader() throws IOException
+    {
+        java.io.File json = java.io.File.createTempFile("flextree", ".json");
+        java.io.File bin = java.io.File.createTempFile("flextree", ".bin");
+        java.io.File expectedBin = java.io.File.createTempFile("flextree", ".bin");
+        try {
+            Tree t = RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, 9);
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .build().layout(t);
+            int i = 0;
+            for (Tree node : preorder(t)) {
+                if (i++ % 4 != 0) node.name = "n\u00e9 " + i;
+            }
+            PrintStream ps = new PrintStream(json, "UTF-8");
+            ps.print(t.toJson());
+            ps.close();
+
+            Tree expected = Tree.fromJson(json);
+            Tree actual = TreeReader.read(json);
+            ArrayList<Tree> expectedNodes = preorder(expected), 
+                            actualNodes = preorder(actual);
+            assertEquals(expectedNodes.size(), actualNodes.size());
+            for (int v = 0; v < expectedNodes.size(); v++) {
+                Tree e = expectedNodes.get(v), a = actualNodes.get(v);
+                assertEquals(e.name, a.name);
+                assertEquals(e.x, a.x);
+                assertEquals(e.y, a.y);
+                assertEquals(e.x_size, a.x_size);
+                assertEquals(e.y_size, a.y_size);
+                assertEquals(e.children.size(), a.children.size());
+            }
+
+            BinaryTree.write(expected, expectedBin);
+            TreeReader.toBinary(json, bin);
+            assertTrue(Arrays.equals(java.nio.file.Files.readAllBytes(expectedBin.toPath()),
+                                     java.nio.file.Files.readAllBytes(bin.toPath())));
+
+            // A chain, with the children before the other fields.
+            int n = 100000;
+            StringBuilder sb = new StringBuilder();
+            for (int d = 0; d < n; d++) sb.append("{\"children\":[");
+            for (int d = n - 1; d >= 0; d--) {
+                sb.append("], \"x_size\": 2, \"y_size\": ").append(d).append("}");
+            }
+            Tree chain = TreeReader.read(
+                new java.io.ByteArrayInputStream(sb.toString().getBytes("UTF-8")));
+            Tree node = chain;
+            for (int d = 0; d < n; d++) {
+                assertEquals(2.0, node.x_size);
+                assertEquals((double) d, node.y_size);
+                node = node.hasChildren() ? node.children.get(0) : null;
+            }
+            assertNull(node);
+
+            // The nodes read have their own Children lists, which track changes.
+            for (Tree a : actualNodes) assertTrue(a.children instanceof Tree.Children);
+            actualNodes.get(actualNodes.size() - 1).children.add(new Tree());
+            assertEquals(2001, actual.size());
+
+            // A name that's an object is an error, as it is for databind, rather
+            // than the end of the tree.
+            String badName = "{\"name\": {\"a\": 1}, \"x_size\": 3, \"children\": [{}]}";
+            try {
+                TreeReader.read(new java.io.ByteArrayInputStream(badName.getBytes("UTF-8")));
+                fail("read an object as a name");
+            }
+            catch (com.fasterxml.jackson.core.JsonParseException e) {}
+            try {
+                TreeReader.toBinary(new java.io.ByteArrayInputStream(badName.getBytes("UTF-8")), bin);
+                fail("read an object as a name");
+            }
+            catch (com.fasterxml.jackson.core.JsonParseException e) {}
+            try {
+                Tree.json_mapper.readValue(badName, Tree.class);
+                fail("databind read an object as a name");
+            }
+            catch (IOException e) {}
+        }
+        finally {
+            json.delete();
+            bin.delete();
+            expectedBin.delete();
+        }
+    }
+
+    /**
+     * TreeWriter's compact JSON reads back as the same tree, even when it's too deep
+     * for databind, and its columnar JSON has the layout in preorder.
+     */
+    public void testTreeWriter() throws IOException
+    {
+        Tree t = RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, 10);
+        LayoutEngine engine = LayoutEngine.builder()
+            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+            .build();
+        engine.layout(t);
+        ArrayList<Tree> nodes = preorder(t);
+        for (int i = 0; i < nodes.size(); i += 3) nodes.get(i).name = "n\"" + i;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TreeWriter.write(t, out);
+        for (Tree read : new Tree[] {
+                 Tree.json_mapper.readValue(out.toByteArray(), Tree.class),
+                 TreeReader.read(new java.io.ByteArrayInputStream(out.toByteArray())) }) 
+        {
+            assertTrue(t.deepEquals(read));
+            ArrayList<Tree> readNodes = preorder(read);
+            for (int i = 0; i < nodes.size(); i++) {
+                assertEquals(nodes.get(i).name, readNodes.get(i).name);
+                assertEquals(nodes.get(i).x_size, readNodes.get(i).x_size);
+                assertEquals(nodes.get(i).y_size, readNodes.get(i).y_size);
+            }
+        }
+        ByteArrayOutputStream channelOut = new ByteArrayOutputStream();
+        TreeWriter.write(t, java.nio.channels.Channels.newChannel(channelOut));
+        assertTrue(Arrays.equals(out.toByteArray(), channelOut.toByteArray()));
+
+        ByteArrayOutputStream columnar = new ByteArrayOutputStream();
+        TreeWriter.writeColumnar(t, columnar);
+        ByteArrayOutputStream resultColumnar = new ByteArrayOutputStream();
+        TreeWriter.writeColumnar(engine.layoutResult(t), resultColumnar);
+        assertTrue(Arrays.equals(columnar.toByteArray(), resultColumnar.toByteArray()));
+        com.fasterxml.jackson.databind.JsonNode columns = 
+            Tree.json_mapper.readTree(columnar.toByteArray());
+        assertEquals(nodes.size(), columns.get("size").asInt());
+        for (int i = 0; i < nodes.size(); i++) {
+            Tree node = nodes.get(i);
+            int parent = columns.get("parent").get(i).asInt();
+            if (i == 0) assertEquals(-1, parent);
+            else assertSame(node.parent, nodes.get(parent));
+            assertEquals(node.x, columns.get("x").get(i).asDouble());
+            assertEquals(node.y, columns.get("y").get(i).asDouble());
+            assertEquals(node.y_size, columns.get("y_size").get(i).asDouble());
+            if (node.name == null) assertTrue(columns.get("name").get(i).isNull());
+            else assertEquals(node.name, columns.get("name").get(i).asText());
+        }
+
+        // A chain too deep for a recursive serializer.
+        int n = 100000;
+        Tree chain = new Tree();
+        Tree leaf = chain;
+        for (int d = 1; d < n; d++) {
+            Tree kid = new Tree(1.0, d);
+            leaf.children.add(kid);
+            leaf = kid;
+        }
+        out.reset();
+        TreeWriter.write(chain, out);
+        Tree read = TreeReader.read(new java.io.ByteArrayInputStream(out.toByteArray()));
+        for (int d = 0; d < n; d++) {
+            assertEquals((double) Math.max(d, 1), read.y_size);
+            read = read.hasChildren() ? read.children.get(0) : null;
+        }
+        assertNull(read);
+    }
+
+    /**
+     * Laying out a CompactTree gives the same results as laying out the Tree, 
+     * whatever order the arena's nodes were added in.
+     */
+    public void testCompactTree()
+    {
+        LayoutEngine[] engines = new LayoutEngine[] {
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree).build(),
+            LayoutEngine.builder().build(),
+            LayoutEngine.builder().setNodeSizeFixed(new double[] {3, 4})
+                .setSpacing(LayoutEngine.RelationSpec.constant(1)).build(),
+        };
+        for (LayoutEngine engine : engines) {
+            Tree t = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, 11);
+            t.name = "root";
+            CompactTree c = CompactTree.fromTree(t);
+            engine.layout(t);
+            engine.layout(c);
+            assertTrue(t.deepEquals(c.toTree()));
+            assertEquals("root", c.toTree().name);
+            ArrayList<Tree> nodes = preorder(t);
+            for (int v = 0; v < nodes.size(); v++) {
+                assertEquals(nodes.get(v).depth, c.depth(v));
+            }
+
+            // The same tree, added in level order.
+            CompactTree levels = new CompactTree();
+            java.util.ArrayDeque<Tree> toVisit = new java.util.ArrayDeque<Tree>();
+            java.util.ArrayDeque<Integer> toVisitParents = new java.util.ArrayDeque<Integer>();
+            java.util.IdentityHashMap<Tree, Integer> ids = 
+                new java.util.IdentityHashMap<Tree, Integer>();
+            toVisit.add(t);
+            toVisitParents.add(-1);
+            while (!toVisit.isEmpty()) {
+                Tree node = toVisit.remove();
+                int v = levels.add(toVisitParents.remove(), node.x_size, node.y_size);
+                ids.put(node, v);
+                for (Tree child : node.children) {
+                    toVisit.add(child);
+                    toVisitParents.add(v);
+                }
+            }
+            engine.layout(levels);
+            for (Tree node : nodes) {
+                int v = ids.get(node);
+                assertEquals(node.x, levels.x(v));
+                assertEquals(node.y, levels.y(v));
+                assertEquals(node.depth, levels.depth(v));
+            }
+            assertTrue(t.deepEquals(levels.toTree()));
+        }
+
+        try {
+            LayoutEngine.builder().setSeparation(new LayoutEngine.TreeRelation() {
+                public double s(Tree a, Tree b) { return 1; }
+            }).build().layout(new CompactTree());
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+        try {
+            new CompactTree().add(0, 1, 1);
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+        // A tree with no nodes can't be laid out.
+        try {
+            LayoutEngine.builder().build().layout(new CompactTree());
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals("empty tree", e.getMessage());
+        }
+        try {
+            LayoutEngine.builder().build().layout(new CompactTree(), new LayoutWorkspace());
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals("empty tree", e.getMessage());
+        }
+    }
+
+    // The size and depth of a tree, counted from scratch.
+    static int[] countSizeAndDepth(Tree t) {
+        ArrayList<Tree> nodes = preorder(t);
+        java.util.IdentityHashMap<Tree, Integer> heights = 
+            new java.util.IdentityHashMap<Tree, Integer>();
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            int h = 0;
+            for (Tree kid : nodes.get(i).children) h = Math.max(h, heights.get(kid));
+            heights.put(nodes.get(i), h + 1);
+        }
+        return new int[] { nodes.size(), heights.get(t) };
+    }
+
+    /**
+     * Tree's cached size and depth stay right as the tree changes, and the cursors
+     * visit every node in the right order.
+     */
+    public void testTreeStats()
+    {
+        Tree t = RandomTreeGenerator.makeTree(3000, 1, 10, 1, 10, 12);
+        ArrayList<Tree> nodes = preorder(t);
+        java.util.Random rand = new java.util.Random(12);
+        for (int step = 0; step < 200; step++) {
+            int[] expected = countSizeAndDepth(t);
+            assertEquals(expected[0], t.size());
+            assertEquals(expected[1], t.getDepth());
+            Tree node = nodes.get(rand.nextInt(nodes.size()));
+            int k = node.children.size();
+            switch (step % 6) {
+            case 0:
+                Tree kid = new Tree(1, 1, new Tree(), new Tree(1, 1, new Tree()));
+                node.children.add(rand.nextInt(k + 1), kid);
+                break;
+            case 1:
+                if (k > 0) node.children.remove(rand.nextInt(k));
+                break;
+            case 2:
+                if (k > 0) node.children.set(rand.nextInt(k), new Tree());
+                break;
+            case 3:
+                java.util.Iterator<Tree> it = node.children.iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+                break;
+            case 4:
+                // A subtree that is moved to another parent.
+                if (k > 0) nodes.get(0).children.add(node.children.remove(k - 1));
+                break;
+            default:
+                java.util.Vector<Tree> replacement = new java.util.Vector<Tree>(node.children);
+                replacement.add(new Tree());
+                node.children = replacement;
+                node.invalidate();
+            }
+            nodes = preorder(t);
+            // Fill in the caches below the changed node.
+            nodes.get(rand.nextInt(nodes.size())).size();
+        }
+
+        TreeCursor pre = TreeCursor.preorder(), 
+                   post = TreeCursor.postorder(),
+                   level = TreeCursor.levelOrder();
+        for (Tree root : new Tree[] { t, nodes.get(nodes.size() / 2), t }) {
+            ArrayList<Tree> expected = preorder(root);
+            assertEquals(expected, root.allNodes());
+            pre.reset(root);
+            java.util.IdentityHashMap<Tree, Integer> depths = 
+                new java.util.IdentityHashMap<Tree, Integer>();
+            for (Tree node : expected) {
+                assertSame(node, pre.next());
+                depths.put(node, pre.depth());
+            }
+            assertNull(pre.next());
+            assertEquals(0, (int) depths.get(root));
+            for (Tree node : expected) {
+                for (Tree kid : node.children) {
+                    assertEquals(depths.get(node) + 1, (int) depths.get(kid));
+                }
+            }
+
+            java.util.Set<Tree> seen = 
+                java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Tree, Boolean>());
+            post.reset(root);
+            for (Tree node = post.next(); node != null; node = post.next()) {
+                for (Tree kid : node.children) assertTrue(seen.contains(kid));
+                assertEquals((int) depths.get(node), post.depth());
+                seen.add(node);
+            }
+            assertEquals(expected.size(), seen.size());
+
+            int count = 0, lastDepth = 0;
+            level.reset(root);
+            for (Tree node = level.next(); node != null; node = level.next(), count++) {
+                assertEquals((int) depths.get(node), level.depth());
+                assertTrue(level.depth() >= lastDepth);
+                lastDepth = level.depth();
+            }
+            assertEquals(expected.size(), count);
+        }
+
+        // A chain too deep for recursion.
+        int n = 100000;
+        Tree chain = new Tree();
+        Tree leaf = chain;
+        for (int d = 1; d < n; d++) {
+            Tree kid = new Tree();
+            leaf.children.add(kid);
+            leaf = kid;
+        }
+        assertEquals(n, chain.size());
+        assertEquals(n, chain.getDepth());
+        leaf.children.add(new Tree());
+        assertEquals(n + 1, chain.size());
+        assertEquals(n + 1, chain.getDepth());
+        assertEquals(n + 1, chain.allNodes().size());
+
+        // Counting doesn't replace a list the caller holds, so changes made through
+        // it are still seen.
+        Tree u = new Tree(1, 1, new Tree());
+        java.util.Vector<Tree> held = u.children;
+        assertEquals(2, u.size());
+        held.add(new Tree());
+        assertSame(held, u.children);
+        assertEquals(3, u.size());
+        java.util.Vector<Tree> own = new java.util.Vector<Tree>();
+        Tree w = new Tree(1, 1, u);
+        u.children = own;
+        u.invalidate();
+        assertEquals(2, w.size());
+        own.add(new Tree(1, 1, new Tree()));
+        assertSame(own, u.children);
+        assertEquals(4, w.size());
+        assertEquals(4, w.getDepth());
+    }
+
+    /**
+     * Trees read with Jackson databind keep their size and depth up to date as
+     * they change.
+     */
+    public void testJsonTreeStats() throws IOException
+    {
+        Tree t = RandomTreeGenerator.makeTree(500, 1, 10, 1, 10, 14);
+        Tree read = Tree.json_mapper.readValue(t.toJson(), Tree.class);
+        assertEquals(500, read.size());
+        assertEquals(t.getDepth(), read.getDepth());
+        ArrayList<Tree> nodes = preorder(read);
+        for (Tree node : nodes) assertTrue(node.children instanceof Tree.Children);
+        Tree leaf = nodes.get(nodes.size() - 1);
+        assertEquals(0, leaf.children.size());
+        java.util.Vector<Tree> held = leaf.children;
+        held.add(new Tree(1, 1, new Tree()));
+        assertEquals(502, read.size());
+        int[] expected = countSizeAndDepth(read);
+        assertEquals(expected[1], read.getDepth());
+        nodes.get(1).children.clear();
+        assertEquals(countSizeAndDepth(read)[0], read.size());
+    }
+
+    /**
+     * The bounds worked out during layout match those found by walking the laid 
+     * out tree, overall, by depth and by subtree.
+     */
+    public void testLayoutBounds()
+    {
+        LayoutEngine[] engines = new LayoutEngine[] {
+            LayoutEngine.builder().setSetNodeSizes(true).setSubtreeBounds(true).build(),
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .setSubtreeBounds(true).build(),
+        };
+        LayoutWorkspace workspace = new LayoutWorkspace();
+        for (LayoutEngine engine : engines) {
+            Tree t = RandomTreeGenerator.makeTree(1000, 10, 100, 10, 100, 13);
+            LayoutResult result = engine.layoutResult(t);
+            engine.layout(t, workspace);
+            ArrayList<Tree> nodes = preorder(t);
+            LayoutBounds[] allBounds = new LayoutBounds[] { result.bounds(), workspace.bounds() };
+            for (LayoutBounds bounds : allBounds) {
+                BoundingBox expected = new BoundingBox(t);
+                assertEquals(expected.min_x(), bounds.overall().min_x());
+                assertEquals(expected.max_x(), bounds.overall().max_x());
+                assertEquals(expected.min_y(), bounds.overall().min_y());
+                assertEquals(expected.max_y(), bounds.overall().max_y());
+
+                int maxDepth = 0;
+                for (Tree node : nodes) maxDepth = Math.max(maxDepth, node.depth);
+                assertEquals(maxDepth, bounds.maxDepth());
+                for (int d = 0; d <= maxDepth; d++) {
+                    double minX = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                    for (Tree node : nodes) {
+                        if (node.depth != d) continue;
+                        minX = Math.min(minX, node.x - result.x_size(nodes.indexOf(node)) / 2);
+                        maxY = Math.max(maxY, node.y + result.y_size(nodes.indexOf(node)));
+                    }
+                    assertEquals(minX, bounds.depth(d).min_x());
+                    assertEquals(maxY, bounds.depth(d).max_y());
+                }
+
+                for (int i = 0; i < nodes.size(); i += 37) {
+                    Tree sub = nodes.get(i);
+                    double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY,
+                           minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                    for (Tree node : preorder(sub)) {
+                        int v = nodes.indexOf(node);
+                        minX = Math.min(minX, result.x(v) - result.x_size(v) / 2);
+                        maxX = Math.max(maxX, result.x(v) + result.x_size(v) / 2);
+                        minY = Math.min(minY, result.y(v));
+                        maxY = Math.max(maxY, result.y(v) + result.y_size(v));
+                    }
+                    BoundingBox box = bounds.subtree(i);
+                    assertEquals(minX, box.min_x());
+                    assertEquals(maxX, box.max_x());
+                    assertEquals(minY, box.min_y());
+                    assertEquals(maxY, box.max_y());
+                }
+            }
+        }
+
+        LayoutResult result = LayoutEngine.builder().build().layoutResult(new Tree());
+        assertFalse(result.bounds().hasSubtreeBounds());
+        try {
+            result.bounds().subtree(0);
+            fail();
+        }
+        catch (IllegalStateException e) {}
+    }
+
+    // Check the index against a search of every node, in some random rectangles, 
+    // and at the center of each node.
+    static void checkSpatialIndex(SpatialIndex index, ArrayList<Tree> nodes, long seed) {
+        assertEquals(nodes.size(), index.size());
+        BoundingBox bb = new BoundingBox(nodes.get(0));
+        java.util.Random rand = new java.util.Random(seed);
+        for (int q = 0; q < 50; q++) {
+            double x0 = bb.min_x() + rand.nextDouble() * bb.x_size(),
+                   y0 = bb.min_y() + rand.nextDouble() * bb.y_size(),
+                   x1 = x0 + rand.nextDouble() * bb.x_size() / 10,
+                   y1 = y0 + rand.nextDouble() * bb.y_size() / 10;
+            java.util.TreeSet<Integer> expected = new java.util.TreeSet<Integer>();
+            for (int i = 0; i < nodes.size(); i++) {
+                Tree t = nodes.get(i);
+                if (t.x - t.x_size / 2 <= x1 && t.x + t.x_size / 2 >= x0 &&
+                    t.y <= y1 && t.y + t.y_size >= y0) 
+                {
+                    expected.add(i);
+                }
+            }
+            java.util.TreeSet<Integer> found = new java.util.TreeSet<Integer>();
+            for (int i : index.search(x0, y0, x1, y1)) {
+                assertSame(nodes.get(i), index.node(i));
+                assertTrue(found.add(i));
+            }
+            assertEquals(expected, found);
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            Tree t = nodes.get(i);
+            assertEquals(i, index.nodeAt(t.x, t.y + t.y_size / 2));
+        }
+        assertEquals(-1, index.nodeAt(bb.min_x() - 1, bb.min_y()));
+    }
+
+    /**
+     * The spatial index finds the same nodes as a search of every node, whether it
+     * is built from a LayoutResult or a Tree, in parallel or not, and after an
+     * incremental layout updates it.
+     */
+    public void testSpatialIndex()
+    {
+        LayoutEngine engine = LayoutEngine.builder()
+            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+            .build();
+        Tree t = RandomTreeGenerator.makeTree(40000, 10, 100, 10, 100, 14);
+        LayoutResult result = engine.layoutResult(t);
+        result.apply();
+        ArrayList<Tree> nodes = preorder(t);
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+        try {
+            checkSpatialIndex(SpatialIndex.build(result), nodes, 1);
+            checkSpatialIndex(SpatialIndex.build(result, pool), nodes, 2);
+            checkSpatialIndex(SpatialIndex.build(t, pool), nodes, 3);
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        t = RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, 15);
+        LayoutEngine.Incremental incremental = engine.layoutIncremental(t);
+        SpatialIndex index = SpatialIndex.build(t);
+        nodes = preorder(t);
+        checkSpatialIndex(index, nodes, 4);
+
+        // Resizing a node moves others, but leaves the same nodes.
+        Tree changed = nodes.get(nodes.size() / 2);
+        changed.x_size *= 3;
+        incremental.relayout(changed);
+        assertSame(index, index.update(t));
+        checkSpatialIndex(index, nodes, 5);
+
+        changed.children.add(new Tree(50, 50));
+        incremental.relayout(changed);
+        SpatialIndex updated = index.update(t);
+        assertNotSame(index, updated);
+        checkSpatialIndex(updated, preorder(t), 6);
+
+        assertEquals(0, SpatialIndex.build(new Tree()).nodeAt(0, 0.5));
+    }
+
+    // Whether the rectangles i and j overlap by more than the tolerance, as 
+    // OverlapValidator decides.
+    static boolean overlaps(double[] x0, double[] x1, double[] y0, double[] y1,
+                            double tolX, double tolY, int i, int j) 
+    {
+        return x1[i] - x0[j] > tolX && x1[j] - x0[i] > tolX &&
+               y1[i] - y0[j] > tolY && y1[j] - y0[i] > tolY;
+    }
+
+    static java.util.Set<String> pairs(java.util.List<OverlapValidator.Overlap> overlaps) {
+        java.util.Set<String> pairs = new java.util.HashSet<String>();
+        for (OverlapValidator.Overlap o : overlaps) {
+            assertTrue(o.a < o.b);
+            assertTrue(pairs.add(o.toString()));
+        }
+        return pairs;
+    }
+
+    /**
+     * The sweep-line validator finds the same overlapping pairs as comparing every
+     * pair, with and without a pool, and none in real layouts.
+     */
+    public void testOverlapValidator()
+    {
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+        try {
+            // Random rectangles, many of which overlap.
+            int n = 20000;
+            java.util.Random rand = new java.util.Random(16);
+            double[] x0 = new double[n], x1 = new double[n], y0 = new double[n], y1 = new double[n];
+            for (int i = 0; i < n; i++) {
+                x0[i] = rand.nextInt(10000);
+                x1[i] = x0[i] + 1 + rand.nextInt(20);
+                y0[i] = rand.nextInt(5000);
+                y1[i] = y0[i] + 1 + rand.nextInt(rand.nextInt(10) == 0 ? 2000 : 20);
+            }
+            double tolX = 10020 * OverlapValidator.TOLERANCE, 
+                   tolY = 7000 * OverlapValidator.TOLERANCE;
+            java.util.Set<String> expected = new java.util.HashSet<String>();
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    if (overlaps(x0, x1, y0, y1, tolX, tolY, i, j)) expected.add("(" + i + ", " + j + ")");
+                }
+            }
+            assertTrue(expected.size() > 1000);
+            java.util.List<OverlapValidator.Overlap> all = 
+                OverlapValidator.find(x0, x1, y0, y1, Integer.MAX_VALUE, null);
+            assertEquals(expected, pairs(all));
+            java.util.List<OverlapValidator.Overlap> parallel = 
+                OverlapValidator.find(x0, x1, y0, y1, Integer.MAX_VALUE, pool);
+            assertEquals(expected, pairs(parallel));
+            java.util.List<OverlapValidator.Overlap> first = 
+                OverlapValidator.find(x0, x1, y0, y1, 5, pool);
+            assertEquals(pairs(parallel.subList(0, 5)), pairs(first));
+
+            // A layout with spacing between the nodes has none, until some nodes
+            // are moved onto others.
+            Tree t = RandomTreeGenerator.makeTree(40000, 10, 100, 10, 100, 16);
+            LayoutResult result = LayoutEngine.builder()
+                .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .setSpacing(LayoutEngine.spacing0)
+                .build().layoutResult(t);
+            assertFalse(OverlapValidator.hasOverlaps(result));
+            assertTrue(OverlapValidator.find(result, Integer.MAX_VALUE, pool).isEmpty());
+            result.apply();
+            ArrayList<Tree> nodes = preorder(t);
+            assertFalse(TestUtils.hasOverlappingNodes(t));
+            for (int k = 0; k < 20; k++) {
+                Tree moved = nodes.get(rand.nextInt(nodes.size())),
+                     onto = nodes.get(rand.nextInt(nodes.size()));
+                moved.x = onto.x + rand.nextDouble() * onto.x_size / 2;
+                moved.y = onto.y + rand.nextDouble() * onto.y_size / 2;
+            }
+            n = nodes.size();
+            x0 = new double[n]; x1 = new double[n]; y0 = new double[n]; y1 = new double[n];
+            for (int i = 0; i < n; i++) {
+                Tree node = nodes.get(i);
+                x0[i] = node.x - node.x_size / 2;
+                x1[i] = node.x + node.x_size / 2;
+                y0[i] = node.y;
+                y1[i] = node.y + node.y_size;
+            }
+            BoundingBox bb = new BoundingBox(t);
+            tolX = bb.x_size() * OverlapValidator.TOLERANCE;
+            tolY = bb.y_size() * OverlapValidator.TOLERANCE;
+            // Only the moved nodes can overlap anything; they're found with a 
+            // cheap sweep over the pairs whose x ranges are close.
+            expected.clear();
+            Integer[] byX = new Integer[n];
+            for (int i = 0; i < n; i++) byX[i] = i;
+            final double[] lefts = x0;
+            Arrays.sort(byX, new java.util.Comparator<Integer>() {
+                public int compare(Integer a, Integer b) { return Double.compare(lefts[a], lefts[b]); }
+            });
+            for (int p = 0; p < n; p++) {
+                int i = byX[p];
+                for (int q = p + 1; q < n && x0[byX[q]] < x1[i]; q++) {
+                    int j = byX[q];
+                    if (overlaps(x0, x1, y0, y1, tolX, tolY, i, j)) {
+                        expected.add("(" + Math.min(i, j) + ", " + Math.max(i, j) + ")");
+                    }
+                }
+            }
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, pairs(OverlapValidator.find(t, Integer.MAX_VALUE)));
+            assertEquals(expected, pairs(OverlapValidator.find(t, Integer.MAX_VALUE, pool)));
+            assertTrue(TestUtils.hasOverlappingNodes(t));
+
+            // A node of no height doesn't overlap a taller one with the same top,
+            // in either order.
+            for (int order = 0; order < 2; order++) {
+                Tree flat = new Tree(4, 0), tall = new Tree(4, 15);
+                Tree parent = order == 0 ? new Tree(1, 1, flat, tall) : new Tree(1, 1, tall, flat);
+                parent.x = 100;
+                flat.y = tall.y = 5;
+                assertTrue(OverlapValidator.find(parent, Integer.MAX_VALUE).isEmpty());
+                assertTrue(TestUtils.overlappingNodesPairwise(parent).isEmpty());
+            }
+
+            // Small trees with zero and tiny heights, and many nodes with the same
+            // top, give the same pairs as comparing every pair.
+            double[] heights = { 0, 1e-13, 1, 3 };
+            for (int trial = 0; trial < 50; trial++) {
+                Tree small = RandomTreeGenerator.makeTree(60, 1, 4, 1, 4, trial);
+                for (Tree node : preorder(small)) {
+                    node.x = rand.nextInt(12);
+                    node.y = rand.nextInt(4);
+                    node.x_size = rand.nextInt(4);
+                    node.y_size = heights[rand.nextInt(heights.length)];
+                }
+                java.util.Set<String> pairwise = pairs(TestUtils.overlappingNodesPairwise(small));
+                assertEquals(pairwise, pairs(OverlapValidator.find(small, Integer.MAX_VALUE)));
+                assertEquals(pairwise, pairs(OverlapValidator.find(small, Integer.MAX_VALUE, pool)));
+                assertEquals(!pairwise.isEmpty(), TestUtils.hasOverlappingNodes(small));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testLayoutDiff()
+    {
+        LayoutEngine engine = LayoutEngine.builder()
+            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+            .build();
+        Tree t = RandomTreeGenerator.makeTree(5000, 10, 100, 10, 100, 20);
+        Tree copy = CompactTree.fromTree(t).toTree();
+        assertEquals(t.structuralHash(), copy.structuralHash());
+        engine.layout(t);
+        engine.layout(copy);
+        LayoutDiff same = LayoutDiff.compare(t, copy, 0);
+        assertTrue(same.isEqual());
+        assertEquals(5000, same.numCompared());
+        assertEquals(0.0, same.maxDisplacement());
+        assertTrue(t.deepEquals(copy));
+
+        // Move a few nodes, some by less than epsilon.
+        ArrayList<Tree> nodes = preorder(copy);
+        int[] moved = { 17, 400, 401, 4999 };
+        double[] by = { 3, 0.5, 1e-9, 4 };
+        for (int i = 0; i < moved.length; i++) {
+            nodes.get(moved[i]).x += by[i];
+        }
+        nodes.get(400).y -= 0.5;
+        LayoutDiff diff = LayoutDiff.compare(t, copy, 1e-6);
+        assertFalse(diff.isEqual());
+        assertEquals(3, diff.numDifferent());
+        assertEquals(3, diff.differences().size());
+        assertEquals(4.0, diff.maxDisplacement());
+        assertEquals((3 + Math.hypot(0.5, 0.5) + 1e-9 + 4) / 5000, diff.meanDisplacement(), 1e-12);
+        ArrayList<Tree> expectedNodes = preorder(t);
+        int j = 0;
+        for (LayoutDiff.Difference d : diff.differences()) {
+            int i = moved[j++];
+            if (j == 3) i = moved[j++];
+            // Follow the path down from the root.
+            Tree node = t;
+            for (int k : d.path) node = node.children.get(k);
+            assertSame(expectedNodes.get(i), node);
+            assertEquals(nodes.get(i).x, d.actualX);
+            assertEquals(node.x, d.expectedX);
+        }
+        assertEquals(1, LayoutDiff.compare(t, copy, 1e-6, 1).differences().size());
+        assertEquals(3, LayoutDiff.compare(t, copy, 1e-6, 1).numDifferent());
+        assertEquals(diff.numCompared(), LayoutDiff.compare(t, copy, 1e-6, 1).numCompared());
+        assertEquals(diff.maxDisplacement(), LayoutDiff.compare(t, copy, 1e-6, 1).maxDisplacement());
+        assertEquals(1, LayoutDiff.first(t, copy, 1e-6).numDifferent());
+        assertEquals(diff.differences().get(0).pathString(),
+                     LayoutDiff.first(t, copy, 1e-6).differences().get(0).pathString());
+        assertEquals(2, LayoutDiff.compare(t, copy, 1e-6, 2).differences().size());
+        assertEquals(3, LayoutDiff.compare(t, copy, 1e-6, 2).numDifferent());
+        assertFalse(t.deepEquals(copy));
+        assertTrue(LayoutDiff.compare(t, copy, 10).isEqual());
+        // Positions aren't part of the hash.
+        assertEquals(t.structuralHash(), copy.structuralHash());
+
+        // A different number of children is reported, and the subtrees below
+        // aren't compared.
+        Tree root = copy.children.get(0);
+        int below = root.size();
+        root.children.add(new Tree(10, 10));
+        diff = LayoutDiff.compare(t, copy, 10);
+        assertEquals(1, diff.numDifferent());
+        assertEquals("/0", diff.differences().get(0).pathString());
+        assertEquals(5000 - below + 1, diff.numCompared());
+        assertFalse(t.structuralHash() == copy.structuralHash());
+        root.children.remove(root.children.size() - 1);
+        assertEquals(t.structuralHash(), copy.structuralHash());
+
+        // Sizes and shapes change the hash; the order of the children does too.
+        long h = new Tree(1, 2, new Tree(3, 4), new Tree(5, 6)).structuralHash();
+        assertEquals(h, new Tree(1, 2, new Tree(3, 4), new Tree(5, 6)).structuralHash());
+        assertFalse(h == new Tree(1, 2, new Tree(5, 6), new Tree(3, 4)).structuralHash());
+        assertFalse(h == new Tree(2, 1, new Tree(3, 4), new Tree(5, 6)).structuralHash());
+        assertFalse(h == new Tree(1, 2, new Tree(3, 4, new Tree(5, 6))).structuralHash());
+
+        // Deep chains don't overflow the stack.
+        Tree chain = new Tree(1, 1), chain2 = new Tree(1, 1);
+        for (int i = 0; i < 200000; i++) {
+            chain = new Tree(1, 1, chain);
+            chain2 = new Tree(1, 1, chain2);
+        }
+        assertTrue(LayoutDiff.compare(chain, chain2, 0).isEqual());
+        assertEquals(chain.structuralHash(), chain2.structuralHash());
+    }
+
+    public void testShapeTreeGenerator() throws IOException
+    {
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+        java.io.File bin = java.io.File.createTempFile("flextree", ".bin");
+        try {
+            int n = 50000;
+            ShapeTreeGenerator[] gens = {
+                ShapeTreeGenerator.chain(n),
+                ShapeTreeGenerator.fan(n),
+                ShapeTreeGenerator.kAry(n, 3),
+                ShapeTreeGenerator.caterpillar(n, 4),
+                ShapeTreeGenerator.galtonWatson(n),
+                ShapeTreeGenerator.comb(n, 7),
+                ShapeTreeGenerator.staircase(n),
+            };
+            // The depths of each shape, which is 1 for a leaf. The caterpillar has
+            // n / 5 spine nodes, and the last one has legs; the staircase has full
+            // chains of up to 315 nodes, and then part of one of 316.
+            int[] depths = { n, 2, 11, n / 5 + 1, -1, 2 + (n - 1) / 7, 316 };
+            LayoutEngine engine = LayoutEngine.builder()
+                .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                .setSpacing(LayoutEngine.spacing0)
+                .setUseArrays(true)
+                .build();
+            for (int g = 0; g < gens.length; g++) {
+                ShapeTreeGenerator gen = gens[g].setNodeSizes(1, 10, 1, 10).setSeed(g);
+                Tree t = gen.makeTree();
+                assertEquals(n, t.size());
+                if (depths[g] > 0) assertEquals(depths[g], t.getDepth());
+                long hash = t.structuralHash();
+
+                // The same tree every time, in parallel or not, and in every format.
+                assertEquals(hash, gen.setForkJoinPool(pool).makeTree().structuralHash());
+                assertEquals(hash, gen.makeCompactTree().toTree().structuralHash());
+                gen.setForkJoinPool(null);
+                assertEquals(hash, gen.makeCompactTree().toTree().structuralHash());
+                gen.writeBinary(bin);
+                BinaryTree bt = BinaryTree.open(bin);
+                try {
+                    assertEquals(hash, bt.toTree().structuralHash());
+                }
+                finally {
+                    bt.close();
+                }
+                ByteArrayOutputStream expected = new ByteArrayOutputStream(),
+                                      actual = new ByteArrayOutputStream();
+                StreamingLayout.writeNodes(t, new java.io.DataOutputStream(expected));
+                gen.writeNodes(new java.io.DataOutputStream(actual));
+                assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+                assertFalse(hash == gen.setSeed(g + 100).makeTree().structuralHash());
+
+                engine.layout(t);
+                assertFalse(TestUtils.hasOverlappingNodes(t));
+            }
+
+            // Shapes whose size doesn't divide evenly, and the smallest trees.
+            assertEquals(1, ShapeTreeGenerator.kAry(1, 2).makeTree().size());
+            assertEquals(1, ShapeTreeGenerator.galtonWatson(1).makeTree().size());
+            assertEquals(2, ShapeTreeGenerator.galtonWatson(2).makeTree().getDepth());
+            Tree comb = ShapeTreeGenerator.comb(12, 4).makeTree();
+            assertEquals(4, comb.children.size());
+            assertEquals(3, comb.children.get(0).size());
+            assertEquals(2, comb.children.get(3).size());
+            Tree stairs = ShapeTreeGenerator.staircase(8).makeTree();
+            assertEquals(4, stairs.children.size());
+            assertEquals(1, stairs.children.get(3).size());
+            Tree complete = ShapeTreeGenerator.kAry(6, 2).makeTree();
+            assertEquals(3, complete.children.get(0).size());
+            assertEquals(2, complete.children.get(1).size());
+        }
+        finally {
+            bin.delete();
+            pool.shutdown();
+        }
+    }
+
+    static long[] counts(LayoutStats stats) {
+        return new long[] { stats.numNodes(), stats.separations(), stats.contourSteps(),
+                            stats.moveSubtrees(), stats.distributeExtras(), stats.threads(),
+                            stats.maxIYLLength(), stats.iylPops() };
+    }
+
+    public void testLayoutStats()
+    {
+        final ArrayList<LayoutStats> done = new ArrayList<LayoutStats>();
+        LayoutListener listener = new LayoutListener() {
+            public void layoutDone(LayoutStats stats) {
+                done.add(stats);
+            }
+        };
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+        try {
+            // Every path counts the same steps, since they run the same algorithm.
+            Tree t = RandomTreeGenerator.makeTree(20000, 1, 10, 1, 10, 23);
+            LayoutEngine.Builder b = LayoutEngine.builder()
+                .setNodeSizeFunction(new LayoutEngine.NodeSizeFunction() {
+                    public double[] ns(Tree t) {
+                        return new double[] {t.x_size, t.y_size};
+                    }
+                })
+                .setLayoutListener(listener);
+            b.build().layout(t);
+            b.setUseArrays(true).build().layout(t);
+            b.build().layoutResult(t);
+            b.setForkJoinPool(pool).setParallelThreshold(500).build().layout(t);
+            b.setNodeSizeFunction(LayoutEngine.nodeSizeFromTree).setForkJoinPool(null)
+                .build().layout(CompactTree.fromTree(t));
+            assertEquals(5, done.size());
+            LayoutStats first = done.get(0);
+            long separations = 0;
+            for (Tree node : preorder(t)) {
+                separations += Math.max(0, node.children.size() - 1);
+            }
+            assertEquals(20000, first.numNodes());
+            assertEquals(separations, first.separations());
+            assertTrue(first.contourSteps() >= separations);
+            assertTrue(first.moveSubtrees() > 0);
+            assertTrue(first.distributeExtras() > 0);
+            assertTrue(first.threads() > 0);
+            assertTrue(first.maxIYLLength() > 1);
+            for (LayoutStats stats : done) {
+                assertTrue(Arrays.equals(counts(first), counts(stats)));
+                long total = 0;
+                for (LayoutStats.Phase p : LayoutStats.Phase.values()) {
+                    assertTrue(stats.nanos(p) >= 0);
+                    total += stats.nanos(p);
+                }
+                assertEquals(total, stats.totalNanos());
+                assertTrue(stats.nanos(LayoutStats.Phase.FIRST_WALK) > 0);
+            }
+            assertTrue(done.get(0).nanos(LayoutStats.Phase.SIZES) > 0);
+            assertTrue(done.get(1).nanos(LayoutStats.Phase.SIZES) > 0);
+            assertEquals(0, done.get(4).nanos(LayoutStats.Phase.SIZES));
+
+            // The counts of shapes whose work is known. Each tooth of a comb is
+            // separated from the one before along its whole length; each chain
+            // of a staircase is deeper than the ones before, so it gets a thread.
+            done.clear();
+            LayoutEngine engine = LayoutEngine.builder()
+                .setLayoutListener(listener)
+                .setUseArrays(true)
+                .build();
+            engine.layout(ShapeTreeGenerator.fan(1000).makeTree());
+            engine.layout(ShapeTreeGenerator.comb(1001, 10).makeTree());
+            engine.layout(ShapeTreeGenerator.staircase(1 + 20 * 21 / 2).makeTree());
+            assertEquals(998, done.get(0).contourSteps());
+            assertEquals(0, done.get(0).threads());
+            // Each child of the fan hides the one before it.
+            assertEquals(998, done.get(0).iylPops());
+            assertEquals(9 * 100, done.get(1).contourSteps());
+            assertEquals(0, done.get(1).threads());
+            assertEquals(19, done.get(2).threads());
+            // Chain j walks the j - 1 levels of the chains before it.
+            assertEquals(19 * 20 / 2, done.get(2).contourSteps());
+
+            // Without a listener, nothing is reported.
+            done.clear();
+            LayoutEngine.builder().build().layout(t);
+            assertTrue(done.isEmpty());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The contour steps and IYL pops per node stay under their bounds, and don't
+     * grow with the size of the tree, on the shapes of ComplexityCheck. The sizes
+     * can be set with -Dflextree.complexity.sizes=...; ComplexityCheck runs them up
+     * to 10M nodes.
+     */
+    public void testLinearWork()
+    {
+        int[] sizes = ComplexityCheck.sizes(
+            System.getProperty("flextree.complexity.sizes", "1000,10000,100000"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrayList<String> failures = ComplexityCheck.check(sizes, new PrintStream(out));
+        assertTrue(out.toString() + failures, failures.isEmpty());
+    }
+
+    /**
+     * A recording with the flextree events enabled gets one event per layout, and
+     * one per phase, and one per read or write of JSON.
+     */
+    public void testLayoutEvents()
+        throws IOException
+    {
+        if (!LayoutEvents.AVAILABLE) return;
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("flextree", ".jfr");
+        jdk.jfr.Recording recording = new jdk.jfr.Recording();
+        try {
+            recording.enable("org.klortho.flextree.Layout");
+            recording.enable("org.klortho.flextree.LayoutPhase");
+            recording.enable("org.klortho.flextree.Json");
+            recording.start();
+            Tree t = RandomTreeGenerator.makeTree(2000, 1, 10, 1, 10, 29);
+            LayoutEngine.Builder b = LayoutEngine.builder()
+                .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree);
+            b.build().layout(t);
+            b.setForkJoinPool(pool).setParallelThreshold(100).build().layout(t);
+            b.setForkJoinPool(null).build().layout(CompactTree.fromTree(t));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TreeWriter.write(t, out);
+            TreeReader.read(new java.io.ByteArrayInputStream(out.toByteArray()));
+            recording.stop();
+            recording.dump(file);
+
+            ArrayList<String> layouts = new ArrayList<String>(),
+                              phases = new ArrayList<String>(),
+                              json = new ArrayList<String>();
+            for (jdk.jfr.consumer.RecordedEvent e :
+                    jdk.jfr.consumer.RecordingFile.readAllEvents(file))
+            {
+                String name = e.getEventType().getName();
+                if (name.equals("org.klortho.flextree.Layout")) {
+                    assertEquals(2000, e.getInt("nodes"));
+                    assertEquals(t.getDepth(), e.getInt("depth"));
+                    assertEquals("nodeSizeFromTree", e.getString("sizing"));
+                    assertTrue(e.getLong("separations") > 0);
+                    layouts.add(e.getString("path") + " " + e.getInt("threads"));
+                }
+                else if (name.equals("org.klortho.flextree.LayoutPhase")) {
+                    phases.add(e.getString("phase"));
+                }
+                else if (name.equals("org.klortho.flextree.Json")) {
+                    assertEquals(2000, e.getInt("nodes"));
+                    json.add(e.getString("operation"));
+                }
+            }
+            java.util.Collections.sort(layouts);
+            assertEquals(Arrays.asList("arrays 2", "compact 1", "wrapped 1"), layouts);
+            // Each layout has its walks, and the array-backed one of a Tree sizes
+            // its nodes as it loads them.
+            assertEquals(3, java.util.Collections.frequency(phases, "FIRST_WALK"));
+            assertEquals(1, java.util.Collections.frequency(phases, "SIZES"));
+            java.util.Collections.sort(json);
+            assertEquals(Arrays.asList("TreeReader.read", "TreeWriter.write"), json);
+        }
+        finally {
+            recording.close();
+            java.nio.file.Files.delete(file);
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The parallel firstWalk gives exactly the same results as the sequential one,
+     * however the subtrees are split up into tasks.
+     */
+    public void testParallelLayout()
+    {
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+        try {
+            for (int threshold : new int[] {1, 2, 10, 100}) {
+                LayoutEngine parallel = LayoutEngine.builder()
+                                            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                            .setSpacing(LayoutEngine.spacing0)
+                                            .setForkJoinPool(pool)
+                                            .setParallelThreshold(threshold)
+                                            .build();
+                LayoutEngine sequential = LayoutEngine.builder()
+                                            .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                            .setSpacing(LayoutEngine.spacing0)
+                                            .build();
+                for (int seed = 0; seed < 5; seed++) {
+                    Tree actual = RandomTreeGenerator.makeTree(3000, 10, 100, 10, 100, seed);
+                    Tree expected = RandomTreeGenerator.makeTree(3000, 10, 100, 10, 100, seed);
+                    parallel.layout(actual);
+                    sequential.layout(expected);
+                    StringPrintStream out = new StringPrintStream();
+                    assertTrue(out.toString(), actual.deepEquals(expected, out.ps));
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Lay out many trees at once with one shared engine, and check each one
+     * against a layout done on its own.
+     */
+    public void testLayoutAll()
+    {
+        java.util.concurrent.ExecutorService executor = 
+            java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            for (boolean useArrays : new boolean[] {false, true}) {
+                LayoutEngine engine = LayoutEngine.builder()
+                                          .setSetNodeSizes(true)
+                                          .setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                          .setUseArrays(useArrays)
+                                          .build();
+                ArrayList<Tree> trees = new ArrayList<Tree>();
+                for (int seed = 0; seed < 40; seed++) {
+                    trees.add(RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, seed));
+                }
+                java.util.List<LayoutTiming> timings = engine.layoutAll(trees, executor);
+                assertEquals(trees.size(), timings.size());
+                for (int seed = 0; seed < trees.size(); seed++) {
+                    assertSame(trees.get(seed), timings.get(seed).tree);
+                    assertTrue(timings.get(seed).nanos > 0);
+                    Tree expected = RandomTreeGenerator.makeTree(2000, 10, 100, 10, 100, seed);
+                    engine.layout(expected);
+                    StringPrintStream out = new StringPrintStream();
+                    assertTrue(out.toString(), trees.get(seed).deepEquals(expected, out.ps));
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Edit a tree over and over, updating the layout incrementally, and check it
+     * against a full layout of the same tree after every edit.
+     */
+    public void testIncrementalLayout()
+    {
+        LayoutEngine.Builder[] builders = {
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree)
+                                  .setSpacing(LayoutEngine.spacing0),
+            LayoutEngine.builder().setNodeSizeFunction(LayoutEngine.nodeSizeFromTree),
+            LayoutEngine.builder().setNodeSizeFixed(new double[] {50, 50}),
+            LayoutEngine.builder().setSize(new double[] {200, 100}),
+        };
+        java.util.Random rand = new java.util.Random(17);
+        for (LayoutEngine.Builder b : builders) {
+            LayoutEngine engine = b.setSetNodeSizes(true).build();
+            Tree actual = RandomTreeGenerator.makeTree(300, 10, 100, 10, 100, 5);
+            Tree expected = RandomTreeGenerator.makeTree(300, 10, 100, 10, 100, 5);
+            LayoutEngine.Incremental incremental = engine.layoutIncremental(actual);
+            for (int edit = 0; edit < 100; edit++) {
+                ArrayList<Tree> actualNodes = actual.allNodes();
+                int k = rand.nextInt(actualNodes.size());
+                Tree a = actualNodes.get(k);
+                Tree e = expected.allNodes().get(k);
+                switch (rand.nextInt(3)) {
+                    case 0:
+                        int i = rand.nextInt(a.children.size() + 1);
+                        double w = 10 + rand.nextInt(90), h = 10 + rand.nextInt(90);
+                        a.children.add(i, new Tree(w, h, new Tree(h, w)));
+                        e.children.add(i, new Tree(w, h, new Tree(h, w)));
+                        break;
+                    case 1:
+                        if (a.hasChildren()) {
+                            int j = rand.nextInt(a.children.size());
+                            a.children.remove(j);
+                            e.children.remove(j);
+                        }
+                        break;
+                    default:
+                        a.x_size = e.x_size = 10 + rand.nextInt(90);
+                        a.y_size = e.y_size = 10 + rand.nextInt(90);
+                }
+                incremental.relayout(a);
+                engine.layout(expected);
+
+                StringPrintStream out = new StringPrintStream();
+                assertTrue(out.toString(), actual.deepEquals(expected, out.ps));
+            }
+        }
+    }
+
     /**
      * Test the layout algorithm against the collection of
      * tests in test/resources/tests.json